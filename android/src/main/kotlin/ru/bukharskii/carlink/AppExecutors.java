@@ -8,66 +8,39 @@ import androidx.annotation.NonNull;
 
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class AppExecutors
 {
-    private static class BackgroundThreadExecutor implements Executor
+    // Named threads that set their Android priority once, when they start, instead of on every task.
+    // Java has no CPU affinity API, keeping these loops off the raster thread's core is left to the
+    // scheduler; the priorities are what makes it prefer them.
+    static ThreadFactory namedThreadFactory(String threadName, int androidPriority)
     {
-        private final Executor executor;
-
-        public BackgroundThreadExecutor()
-        {
-            executor = Executors.newSingleThreadExecutor();
-        }
-
-        @Override
-        public void execute(@NonNull Runnable command)
-        {
-            executor.execute(command);
-        }
+        AtomicInteger count = new AtomicInteger();
+        return r -> {
+            int number = count.incrementAndGet();
+            return new Thread(() -> {
+                android.os.Process.setThreadPriority(androidPriority);
+                r.run();
+            }, number == 1 ? threadName : threadName + "-" + number);
+        };
     }
 
-    // Optimized thread pool for Intel Atom x7-A3960 quad-core
-    private static class OptimizedMediaCodecExecutor implements Executor
+    private static class BackgroundThreadExecutor implements Executor
     {
-        private final ThreadPoolExecutor executor;
+        private final Executor executor;
 
-        public OptimizedMediaCodecExecutor(String threadName, int androidPriority)
+        public BackgroundThreadExecutor(String threadName, int androidPriority)
         {
-            // Get available CPU cores for Intel Atom x7-A3960 (should be 4)
-            int numberOfCores = Runtime.getRuntime().availableProcessors();
-            
-            // Create optimized thread pool based on Android best practices
-            // Core pool: half cores, Max pool: all cores to utilize quad-core efficiently  
-            executor = new ThreadPoolExecutor(
-                Math.max(1, numberOfCores / 2), // corePoolSize - utilize half cores initially
-                numberOfCores, // maximumPoolSize - can scale to all cores under load
-                60L, // keepAliveTime - standard Android recommendation
-                TimeUnit.SECONDS,
-                new LinkedBlockingQueue<>(128), // Larger queue for 6GB RAM system
-                r -> {
-                    Thread t = new Thread(r, threadName);
-                    // Don't set Thread priority here - it will be set in the execute method
-                    return t;
-                }
-            );
-            executor.allowCoreThreadTimeOut(true); // Allow core threads to timeout for efficiency
-            this.androidPriority = androidPriority;
+            executor = Executors.newSingleThreadExecutor(namedThreadFactory(threadName, androidPriority));
         }
-        
-        private final int androidPriority;
 
         @Override
         public void execute(@NonNull Runnable command)
         {
-            // Wrap command to set Android thread priority properly
-            executor.execute(() -> {
-                android.os.Process.setThreadPriority(androidPriority);
-                command.run();
-            });
+            executor.execute(command);
         }
     }
 
@@ -86,22 +59,18 @@ public class AppExecutors
 
     private final BackgroundThreadExecutor usbIn;
     private final BackgroundThreadExecutor usbOut;
-    private final OptimizedMediaCodecExecutor mediaCodec1;
-    private final OptimizedMediaCodecExecutor mediaCodec2;
     private final BackgroundThreadExecutor mediaCodec;
     private final MainThreadExecutor mainThread;
 
     private AppExecutors()
     {
-        usbIn = new BackgroundThreadExecutor();
-        usbOut = new BackgroundThreadExecutor();
-        mediaCodec = new BackgroundThreadExecutor();
-        
-        // Conservative MediaCodec executors - reduce aggressiveness for stability
-        // Use less aggressive priorities to prevent race conditions during high load
-        mediaCodec1 = new OptimizedMediaCodecExecutor("MediaCodec-Input", android.os.Process.THREAD_PRIORITY_DISPLAY);
-        mediaCodec2 = new OptimizedMediaCodecExecutor("MediaCodec-Output", android.os.Process.THREAD_PRIORITY_DEFAULT);
-        
+        // the read loop also plays the native audio, it gets audio priority
+        usbIn = new BackgroundThreadExecutor("Carlink-UsbIn", android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+        // touch, mic uplink, frame requests and heartbeats
+        usbOut = new BackgroundThreadExecutor("Carlink-UsbOut", android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY);
+        mediaCodec = new BackgroundThreadExecutor("Carlink-MediaCodec", android.os.Process.THREAD_PRIORITY_DISPLAY);
+        // decoder feed and output release run on the renderer's own CodecFeeder threads
+
         mainThread = new MainThreadExecutor();
     }
 
@@ -134,14 +103,6 @@ public class AppExecutors
         return mediaCodec;
     }
 
-    public Executor mediaCodec1() {
-        return mediaCodec1;
-    }
-
-    public Executor mediaCodec2() {
-        return mediaCodec2;
-    }
-
     public Executor mainThread()
     {
         return mainThread;
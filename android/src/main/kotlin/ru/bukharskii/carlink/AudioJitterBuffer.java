@@ -0,0 +1,154 @@
+package ru.bukharskii.carlink;
+
+import java.util.concurrent.TimeUnit;
+
+// Playback depth of one audio stream, in frames. USB delivers the dongle's audio in bursts, the
+// AudioTrack has to hold enough to bridge the gaps but every buffered frame is added latency.
+// The depth starts at minDepthMs, grows by half on each underrun or overflow (a burst the track
+// had no room for) and shrinks by 1/8 after STABLE_PERIOD_NS without either, never below twice
+// the measured arrival jitter.
+// Jitter is the RFC 3550 estimate: deviation of each arrival from the previous arrival plus
+// the previous packet's duration, smoothed by 1/16.
+// Plain Java so it can be tested without a device; owned by the read loop thread.
+public class AudioJitterBuffer {
+    static final long STABLE_PERIOD_NS = TimeUnit.SECONDS.toNanos(5);
+    // a longer gap is the source pausing, not jitter; the underruns it causes don't count
+    static final long IDLE_GAP_NS = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final int sampleRate;
+    private final int minDepthFrames;
+    private final int maxDepthFrames;
+
+    private int targetFrames;
+
+    private long lastArrivalNanos = -1;
+    private int lastPacketFrames = 0;
+    // smoothed arrival jitter in frames
+    private double jitterFrames = 0.0;
+
+    private int lastUnderrunCount = 0;
+    private long stableSinceNanos = -1;
+
+    private long underruns = 0;
+    private long overflows = 0;
+    private long grows = 0;
+    private long shrinks = 0;
+    private int maxTargetFrames;
+
+    public AudioJitterBuffer(int sampleRate, int minDepthMs, int maxDepthMs) {
+        this.sampleRate = sampleRate;
+        this.minDepthFrames = Math.max(1, msToFrames(minDepthMs));
+        this.maxDepthFrames = Math.max(this.minDepthFrames, msToFrames(maxDepthMs));
+        this.targetFrames = this.minDepthFrames;
+        this.maxTargetFrames = this.targetFrames;
+    }
+
+    private int msToFrames(long ms) {
+        return (int) (ms * sampleRate / 1000);
+    }
+
+    private double framesToMs(double frames) {
+        return frames * 1000.0 / sampleRate;
+    }
+
+    /**
+     * Records a packet arrival and the track's underrun counter, adapts the depth.
+     *
+     * @param frames       frames in the packet
+     * @param underrunCount AudioTrack.getUnderrunCount(), cumulative
+     * @return true if getTargetFrames() changed
+     */
+    public boolean onPacket(long arrivalNanos, int frames, int underrunCount) {
+        if (lastArrivalNanos >= 0 && arrivalNanos - lastArrivalNanos > IDLE_GAP_NS) {
+            reset();
+            lastUnderrunCount = underrunCount;
+        }
+
+        if (lastArrivalNanos >= 0) {
+            double arrivalFrames = (arrivalNanos - lastArrivalNanos) * (double) sampleRate / TimeUnit.SECONDS.toNanos(1);
+            double deviation = Math.abs(arrivalFrames - lastPacketFrames);
+            jitterFrames += (deviation - jitterFrames) / 16.0;
+        }
+        lastArrivalNanos = arrivalNanos;
+        lastPacketFrames = frames;
+
+        if (stableSinceNanos < 0) {
+            stableSinceNanos = arrivalNanos;
+        }
+
+        int previous = targetFrames;
+        // below twice the jitter underruns are a matter of time
+        int floor = Math.min(maxDepthFrames, Math.max(minDepthFrames, (int) (2 * jitterFrames)));
+
+        if (underrunCount > lastUnderrunCount) {
+            underruns += underrunCount - lastUnderrunCount;
+            targetFrames = Math.min(maxDepthFrames, Math.max(floor, targetFrames + targetFrames / 2));
+            stableSinceNanos = arrivalNanos;
+        } else if (arrivalNanos - stableSinceNanos >= STABLE_PERIOD_NS) {
+            targetFrames = Math.max(floor, targetFrames - targetFrames / 8);
+            stableSinceNanos = arrivalNanos;
+        } else if (targetFrames < floor) {
+            targetFrames = floor;
+        }
+        lastUnderrunCount = underrunCount;
+
+        if (targetFrames > previous) {
+            grows++;
+        } else if (targetFrames < previous) {
+            shrinks++;
+        }
+        maxTargetFrames = Math.max(maxTargetFrames, targetFrames);
+
+        return targetFrames != previous;
+    }
+
+    /**
+     * Records a write the track's buffer had no room for: the depth is too shallow for the
+     * bursts the source delivers, it grows like on an underrun.
+     *
+     * @return true if getTargetFrames() changed
+     */
+    public boolean onOverflow(long nowNanos) {
+        overflows++;
+        stableSinceNanos = nowNanos;
+
+        int previous = targetFrames;
+        targetFrames = Math.min(maxDepthFrames, targetFrames + targetFrames / 2);
+        if (targetFrames > previous) {
+            grows++;
+        }
+        maxTargetFrames = Math.max(maxTargetFrames, targetFrames);
+
+        return targetFrames != previous;
+    }
+
+    /**
+     * Starts over after the stream was stopped, the depth learnt so far is kept.
+     */
+    public void reset() {
+        lastArrivalNanos = -1;
+        lastPacketFrames = 0;
+        stableSinceNanos = -1;
+    }
+
+    public int getTargetFrames() {
+        return targetFrames;
+    }
+
+    public int getMaxDepthFrames() {
+        return maxDepthFrames;
+    }
+
+    public long getUnderruns() {
+        return underruns;
+    }
+
+    public long getOverflows() {
+        return overflows;
+    }
+
+    public String getStats() {
+        return String.format("depth: %.0fms (max %.0fms), jitter: %.1fms, underruns: %d, overflows: %d, grows: %d, shrinks: %d",
+                framesToMs(targetFrames), framesToMs(maxTargetFrames), framesToMs(jitterFrames), underruns, overflows, grows, shrinks);
+    }
+}
@@ -0,0 +1,425 @@
+package ru.bukharskii.carlink;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioTrack;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+// Plays the dongle's AudioData PCM natively, one low-latency AudioTrack per stream type, so audio
+// doesn't cross the Flutter channel and the main thread twice. Only the start/stop/volume messages
+// still go to Dart.
+// Each track's depth follows its AudioJitterBuffer: playback starts once the target depth is
+// written and the track's buffer is kept at twice the target, calls stay short, media can grow.
+// AudioData body: [uint32 decodeType][float32 volume][uint32 audioType] followed by
+// 1 byte command, 4 bytes float32 volume duration, or 16-bit PCM. Only a volume duration message
+// changes a track's gain, PCM packets carry 0.0 in their volume field.
+// Owned by the read loop thread.
+public class AudioSink {
+    private static final String LOG_TAG = "CARLINK";
+
+    public static final int AUDIO_HEADER_LENGTH = 12;
+
+    // AudioCommand ids, see lib/common.dart
+    private static final int COMMAND_OUTPUT_START = 1;
+    private static final int COMMAND_OUTPUT_STOP = 2;
+    private static final int COMMAND_PHONECALL_START = 4;
+    private static final int COMMAND_PHONECALL_STOP = 5;
+    private static final int COMMAND_NAVI_START = 6;
+    private static final int COMMAND_NAVI_STOP = 7;
+    private static final int COMMAND_SIRI_START = 8;
+    private static final int COMMAND_SIRI_STOP = 9;
+    private static final int COMMAND_MEDIA_START = 10;
+    private static final int COMMAND_MEDIA_STOP = 11;
+    private static final int COMMAND_ALERT_START = 12;
+    private static final int COMMAND_ALERT_STOP = 13;
+
+    // audioType of the mixed-in stream (navigation prompts, alerts), everything else is the main stream
+    private static final int AUDIO_TYPE_NAVIGATION = 2;
+
+    public enum StreamType {
+        // depth limits in ms
+        MEDIA(AudioAttributes.USAGE_MEDIA, AudioAttributes.CONTENT_TYPE_MUSIC, 40, 300),
+        // alerts share it, both are short prompts over the main stream
+        NAVIGATION(AudioAttributes.USAGE_ASSISTANCE_NAVIGATION_GUIDANCE, AudioAttributes.CONTENT_TYPE_SPEECH, 40, 200),
+        SIRI(AudioAttributes.USAGE_ASSISTANT, AudioAttributes.CONTENT_TYPE_SPEECH, 20, 120),
+        CALL(AudioAttributes.USAGE_VOICE_COMMUNICATION, AudioAttributes.CONTENT_TYPE_SPEECH, 20, 120);
+
+        final int usage;
+        final int contentType;
+        final int minDepthMs;
+        final int maxDepthMs;
+
+        StreamType(int usage, int contentType, int minDepthMs, int maxDepthMs) {
+            this.usage = usage;
+            this.contentType = contentType;
+            this.minDepthMs = minDepthMs;
+            this.maxDepthMs = maxDepthMs;
+        }
+    }
+
+    // The AudioTrack calls the sink makes, so it can be tested on the JVM with a fake
+    interface Output {
+        // WRITE_NON_BLOCKING, advances pcm by what was written
+        int write(ByteBuffer pcm, int size);
+
+        void setBufferSizeInFrames(int frames);
+
+        int getUnderrunCount();
+
+        boolean isPlaying();
+
+        void play();
+
+        void stop();
+
+        void setVolume(float volume);
+
+        void release();
+    }
+
+    interface OutputFactory {
+        Output create(StreamType streamType, int sampleRate, int channels, int capacityFrames);
+    }
+
+    private static final class AudioTrackOutput implements Output {
+        private final AudioTrack audioTrack;
+
+        AudioTrackOutput(StreamType streamType, int sampleRate, int channels, int capacityFrames) {
+            int channelMask = channels == 1 ? AudioFormat.CHANNEL_OUT_MONO : AudioFormat.CHANNEL_OUT_STEREO;
+            int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+
+            audioTrack = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder()
+                            .setUsage(streamType.usage)
+                            .setContentType(streamType.contentType)
+                            .build())
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(sampleRate)
+                            .setChannelMask(channelMask)
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .build())
+                    .setBufferSizeInBytes(Math.max(minBufferSize, capacityFrames * 2 * channels))
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+        }
+
+        @Override
+        public int write(ByteBuffer pcm, int size) {
+            return audioTrack.write(pcm, size, AudioTrack.WRITE_NON_BLOCKING);
+        }
+
+        @Override
+        public void setBufferSizeInFrames(int frames) {
+            audioTrack.setBufferSizeInFrames(frames);
+        }
+
+        @Override
+        public int getUnderrunCount() {
+            return audioTrack.getUnderrunCount();
+        }
+
+        @Override
+        public boolean isPlaying() {
+            return audioTrack.getPlayState() == AudioTrack.PLAYSTATE_PLAYING;
+        }
+
+        @Override
+        public void play() {
+            audioTrack.play();
+        }
+
+        @Override
+        public void stop() {
+            audioTrack.stop();
+        }
+
+        @Override
+        public void setVolume(float volume) {
+            audioTrack.setVolume(volume);
+        }
+
+        @Override
+        public void release() {
+            audioTrack.release();
+        }
+    }
+
+    private static final class Track {
+        final Output output;
+        final int decodeType;
+        final int frameBytes;
+        final AudioJitterBuffer jitterBuffer;
+        float volume = 1.0f;
+        // written while stopped, playback starts at the target depth
+        int prefilledFrames = 0;
+
+        Track(Output output, int decodeType, int frameBytes, AudioJitterBuffer jitterBuffer) {
+            this.output = output;
+            this.decodeType = decodeType;
+            this.frameBytes = frameBytes;
+            this.jitterBuffer = jitterBuffer;
+        }
+    }
+
+    private final LogCallback logCallback;
+    private final OutputFactory outputFactory;
+    private final Track[] tracks = new Track[StreamType.values().length];
+
+    // what the main stream currently carries, follows the start/stop commands
+    private StreamType mainStream = StreamType.MEDIA;
+
+    private long pcmBytesWritten = 0;
+    private long pcmBytesDropped = 0;
+    private long tracksCreated = 0;
+
+    public AudioSink(LogCallback logCallback) {
+        this(logCallback, AudioTrackOutput::new);
+    }
+
+    AudioSink(LogCallback logCallback, OutputFactory outputFactory) {
+        this.logCallback = logCallback;
+        this.outputFactory = outputFactory;
+    }
+
+    private void log(String message) {
+        Log.d(LOG_TAG, "[AUDIO] " + message);
+        if (logCallback != null) {
+            logCallback.log("[AUDIO] " + message);
+        }
+    }
+
+    // Same table as decodeTypeMap in lib/driver/readable.dart: sample rate, channels
+    static int sampleRateOf(int decodeType) {
+        switch (decodeType) {
+            case 1:
+            case 2:
+                return 44100;
+            case 3:
+                return 8000;
+            case 4:
+                return 48000;
+            case 5:
+            case 7:
+                return 16000;
+            case 6:
+                return 24000;
+            default:
+                return -1;
+        }
+    }
+
+    static int channelsOf(int decodeType) {
+        return decodeType == 3 || decodeType == 5 || decodeType == 6 ? 1 : 2;
+    }
+
+    /**
+     * Tells from the body length alone whether an AudioData message carries PCM,
+     * so the body can be read straight into the buffer it is played from.
+     */
+    public static boolean isPcm(int bodyLength) {
+        int amount = bodyLength - AUDIO_HEADER_LENGTH;
+        return amount > 0 && amount != 1 && amount != 4;
+    }
+
+    /**
+     * Writes the PCM of the AudioData body at offset without blocking, what doesn't fit
+     * in the track's buffer deepens it and is dropped if it still doesn't fit; the read
+     * loop must never wait for playback.
+     */
+    public void writePcm(ByteBuffer body, int offset, int length) {
+        int decodeType = readInt(body, offset);
+        int audioType = readInt(body, offset + 8);
+
+        // the volume field of PCM packets is 0.0, the gain only follows the volume duration messages
+        Track track = trackFor(streamFor(audioType), decodeType);
+        if (track == null) {
+            pcmBytesDropped += length - AUDIO_HEADER_LENGTH;
+            return;
+        }
+
+        ByteBuffer pcm = body.duplicate();
+        pcm.limit(offset + length);
+        pcm.position(offset + AUDIO_HEADER_LENGTH);
+        int size = pcm.remaining();
+
+        AudioJitterBuffer jitterBuffer = track.jitterBuffer;
+        if (jitterBuffer.onPacket(System.nanoTime(), size / track.frameBytes, track.output.getUnderrunCount())) {
+            track.output.setBufferSizeInFrames(2 * jitterBuffer.getTargetFrames());
+        }
+
+        int written = write(track, pcm, size);
+
+        // a burst the track had no room for: deepen it and give the rest one more try
+        if (written < size && jitterBuffer.onOverflow(System.nanoTime())) {
+            track.output.setBufferSizeInFrames(2 * jitterBuffer.getTargetFrames());
+            written += write(track, pcm, size - written);
+        }
+
+        pcmBytesWritten += written;
+        pcmBytesDropped += size - written;
+
+        if (!track.output.isPlaying()) {
+            track.prefilledFrames += written / track.frameBytes;
+            if (track.prefilledFrames >= jitterBuffer.getTargetFrames()) {
+                track.output.play();
+            }
+        }
+    }
+
+    // non-blocking, advances pcm by what was written
+    private int write(Track track, ByteBuffer pcm, int size) {
+        int written = track.output.write(pcm, size);
+        if (written < 0) {
+            log("write failed: " + written);
+            return 0;
+        }
+        return written;
+    }
+
+    /**
+     * Start/stop commands and volume changes, the messages that still go to Dart as well.
+     */
+    public void onControl(ByteBuffer body, int offset, int length) {
+        if (length < AUDIO_HEADER_LENGTH) return;
+
+        float volume = Float.intBitsToFloat(readInt(body, offset + 4));
+        int audioType = readInt(body, offset + 8);
+        int amount = length - AUDIO_HEADER_LENGTH;
+
+        if (amount == 1) {
+            onCommand(body.get(offset + AUDIO_HEADER_LENGTH));
+        } else if (amount == 4) {
+            // volume duration: the dongle ducks the main stream for a prompt, the ramp is left out
+            Track track = tracks[streamFor(audioType).ordinal()];
+            if (track != null) {
+                applyVolume(track, volume);
+            }
+        }
+    }
+
+    private void onCommand(int command) {
+        switch (command) {
+            case COMMAND_SIRI_START:
+                mainStream = StreamType.SIRI;
+                break;
+            case COMMAND_PHONECALL_START:
+                mainStream = StreamType.CALL;
+                break;
+            case COMMAND_OUTPUT_START:
+            case COMMAND_MEDIA_START:
+                mainStream = StreamType.MEDIA;
+                break;
+            case COMMAND_SIRI_STOP:
+                stop(StreamType.SIRI);
+                mainStream = StreamType.MEDIA;
+                break;
+            case COMMAND_PHONECALL_STOP:
+                stop(StreamType.CALL);
+                mainStream = StreamType.MEDIA;
+                break;
+            case COMMAND_OUTPUT_STOP:
+            case COMMAND_MEDIA_STOP:
+                stop(StreamType.MEDIA);
+                break;
+            case COMMAND_NAVI_STOP:
+            case COMMAND_ALERT_STOP:
+                stop(StreamType.NAVIGATION);
+                break;
+            case COMMAND_NAVI_START:
+            case COMMAND_ALERT_START:
+            default:
+                // the track starts with its first PCM
+                break;
+        }
+    }
+
+    private StreamType streamFor(int audioType) {
+        return audioType == AUDIO_TYPE_NAVIGATION ? StreamType.NAVIGATION : mainStream;
+    }
+
+    // the track of the stream type, rebuilt when the format changes; null for an unknown format
+    private Track trackFor(StreamType streamType, int decodeType) {
+        Track track = tracks[streamType.ordinal()];
+        if (track != null && track.decodeType == decodeType) {
+            return track;
+        }
+
+        if (track != null) {
+            log(streamType + " track released, " + track.jitterBuffer.getStats());
+            track.output.release();
+            tracks[streamType.ordinal()] = null;
+        }
+
+        int sampleRate = sampleRateOf(decodeType);
+        if (sampleRate < 0) {
+            log("unknown decodeType " + decodeType + " for " + streamType);
+            return null;
+        }
+
+        int frameBytes = 2 * channelsOf(decodeType);
+        AudioJitterBuffer jitterBuffer = new AudioJitterBuffer(sampleRate, streamType.minDepthMs, streamType.maxDepthMs);
+
+        try {
+            // capacity for the largest depth, the jitter buffer sets the size in use
+            Output output = outputFactory.create(streamType, sampleRate, channelsOf(decodeType), 2 * jitterBuffer.getMaxDepthFrames());
+            output.setBufferSizeInFrames(2 * jitterBuffer.getTargetFrames());
+
+            track = new Track(output, decodeType, frameBytes, jitterBuffer);
+            tracks[streamType.ordinal()] = track;
+            tracksCreated++;
+            log(streamType + " track: " + sampleRate + "Hz, " + channelsOf(decodeType) + "ch");
+            return track;
+        } catch (Exception e) {
+            log("track for " + streamType + " failed: " + e.toString());
+            return null;
+        }
+    }
+
+    private void applyVolume(Track track, float volume) {
+        if (volume != track.volume) {
+            track.volume = volume;
+            track.output.setVolume(volume);
+        }
+    }
+
+    // buffered audio still plays out, the next start prefills again
+    private void stop(StreamType streamType) {
+        Track track = tracks[streamType.ordinal()];
+        if (track == null) return;
+
+        if (track.output.isPlaying()) {
+            track.output.stop();
+        }
+        track.prefilledFrames = 0;
+        track.jitterBuffer.reset();
+    }
+
+    public void release() {
+        for (int i = 0; i < tracks.length; i++) {
+            if (tracks[i] != null) {
+                tracks[i].output.release();
+                tracks[i] = null;
+            }
+        }
+    }
+
+    private static int readInt(ByteBuffer buffer, int offset) {
+        int value = buffer.getInt(offset);
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    public String getStats() {
+        StringBuilder stats = new StringBuilder("tracks created: " + tracksCreated + ", pcm written: " + pcmBytesWritten + ", dropped: " + pcmBytesDropped);
+        for (StreamType streamType : StreamType.values()) {
+            Track track = tracks[streamType.ordinal()];
+            if (track != null) {
+                stats.append(" [").append(streamType).append(": ").append(track.jitterBuffer.getStats()).append(']');
+            }
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,108 @@
+package ru.bukharskii.carlink;
+
+import java.nio.ByteBuffer;
+
+// Splits the bulk IN stream into CarLinkMessageHeader + body frames. Every frame a completed transfer
+// holds is parsed before the next completion is waited for: a header that lies within the transfer is
+// read in place, only one split across two transfers goes through scratch. Bodies are copied out of
+// the transfer by readBody(ByteBuffer), video bodies straight into the ring buffer and the others
+// into a pooled message buffer.
+// Not thread safe, owned by the read loop thread like the reader.
+public class CarLinkMessageFramer {
+    private final UsbBulkReader reader;
+    private final CarLinkMessageHeader header = new CarLinkMessageHeader(0, 0);
+    private final byte[] headerScratch = new byte[CarLinkMessageHeader.MESSAGE_LENGTH];
+    private final ByteBuffer headerScratchView = ByteBuffer.wrap(headerScratch);
+
+    // body bytes of the current frame the caller hasn't read yet
+    private int bodyRemaining = 0;
+
+    private long framesRead = 0;
+    private long headersInPlace = 0;
+    private long headersSplit = 0;
+
+    public CarLinkMessageFramer(UsbBulkReader reader) {
+        this.reader = reader;
+    }
+
+    /**
+     * Reads the next header. The previous body must have been read completely.
+     * The returned header is reused for every frame.
+     *
+     * @return null on a USB error or timeout
+     * @throws Exception on a corrupt header (magic or type check), the stream can't be resynced
+     */
+    public CarLinkMessageHeader readHeader() throws Exception {
+        if (bodyRemaining != 0) {
+            throw new IllegalStateException(bodyRemaining + " bytes of the previous body were not read");
+        }
+
+        ByteBuffer data = reader.available();
+        if (data == null) return null;
+
+        if (data.remaining() >= CarLinkMessageHeader.MESSAGE_LENGTH) {
+            header.readFromBuffer(data, data.position());
+            data.position(data.position() + CarLinkMessageHeader.MESSAGE_LENGTH);
+            headersInPlace++;
+        } else {
+            if (reader.read(headerScratch, 0, CarLinkMessageHeader.MESSAGE_LENGTH) < 0) return null;
+            headerScratchView.clear();
+            header.readFromBuffer(headerScratchView);
+            headersSplit++;
+        }
+
+        if (header.getLength() < 0) {
+            throw new HeaderBuildException("Invalid message length " + header.getLength());
+        }
+
+        bodyRemaining = header.getLength();
+        if (bodyRemaining == 0) {
+            frameComplete();
+        }
+
+        return header;
+    }
+
+    /**
+     * Reads the whole body of the current frame into a new array.
+     *
+     * @return null on a USB error or timeout
+     */
+    public byte[] readBody() {
+        byte[] body = new byte[bodyRemaining];
+        if (reader.read(body, 0, body.length) < 0) return null;
+
+        bodyRemaining = 0;
+        frameComplete();
+        return body;
+    }
+
+    /**
+     * Reads the next buffer.remaining() body bytes of the current frame into buffer.
+     *
+     * @return number of bytes read, or -1 on a USB error or timeout
+     */
+    public int readBody(ByteBuffer buffer) {
+        if (buffer.remaining() > bodyRemaining) {
+            throw new IllegalArgumentException(buffer.remaining() + " bytes requested, " + bodyRemaining + " left in the body");
+        }
+
+        int actualLength = reader.read(buffer);
+        if (actualLength < 0) return actualLength;
+
+        bodyRemaining -= actualLength;
+        if (bodyRemaining == 0) {
+            frameComplete();
+        }
+        return actualLength;
+    }
+
+    private void frameComplete() {
+        framesRead++;
+        reader.messageComplete(CarLinkMessageHeader.MESSAGE_LENGTH + header.getLength());
+    }
+
+    public String getStats() {
+        return "frames: " + framesRead + ", headers in place: " + headersInPlace + ", split: " + headersSplit + ", " + reader.getStats();
+    }
+}
@@ -13,6 +13,10 @@ public class CarLinkMessageHeader {
         return type == 6;
     }
 
+    public boolean isAudioData() {
+        return type == 7;
+    }
+
     public CarLinkMessageHeader(int length, int type) {
         this.length = length;
         this.type = type;
@@ -34,13 +38,34 @@ public class CarLinkMessageHeader {
         buffer.order(ByteOrder.LITTLE_ENDIAN);
 
         int magic = buffer.getInt();
+        int length = buffer.getInt();
+        int type = buffer.getInt();
+        int typeCheck = buffer.getInt();
+
+        read(magic, length, type, typeCheck);
+    }
+
+    // Parses the header at offset without moving the buffer's position or changing its byte order,
+    // so it can be read straight out of a USB transfer buffer that holds more than one message
+    public void readFromBuffer(ByteBuffer buffer, int offset) throws Exception {
+        if (offset < 0 || buffer.limit() - offset < MESSAGE_LENGTH)
+            throw new HeaderBuildException("Invalid buffer size - Expecting 16, got " + (buffer.limit() - offset));
 
+        read(readLittleEndian(buffer, offset),
+                readLittleEndian(buffer, offset + 4),
+                readLittleEndian(buffer, offset + 8),
+                readLittleEndian(buffer, offset + 12));
+    }
+
+    private static int readLittleEndian(ByteBuffer buffer, int offset) {
+        int value = buffer.getInt(offset);
+        return buffer.order() == ByteOrder.LITTLE_ENDIAN ? value : Integer.reverseBytes(value);
+    }
+
+    private void read(int magic, int length, int type, int typeCheck) throws Exception {
         if (magic != MAGIC)
             throw new Exception("Invalid magic number, received " + magic);
 
-        int length = buffer.getInt();
-        int type = buffer.getInt();
-        int typeCheck = buffer.getInt();
         if (typeCheck != ((type ^ -1) & 0xffffffff) >>> 0) {
             throw new HeaderBuildException("Invalid type check, received " + typeCheck);
         }
@@ -62,16 +62,49 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
     private var usbDeviceConnection: UsbDeviceConnection? = null
 
     private var readLoopRunning = false
+    private var micUplink: MicUplink? = null
+    private var frameRequestTicker: FrameRequestTicker? = null
+    // fed by the read loop, aborts its reader when the link stalls
+    @Volatile private var linkWatchdog: LinkWatchdog? = null
+    @Volatile private var activeReader: UsbBulkReader? = null
 
     private val executors: AppExecutors = AppExecutors.getInstance()
+    // every write to the OUT endpoint, touch ahead of audio ahead of control ahead of uploads
+    private val usbWriteScheduler = UsbWriteScheduler(executors.usbOut())
 
+    // Reading loop messages: [int32 type][int32 length][body], little endian, length -1 for no body.
+    // Messages are batched, one channel message carries as many frames as collected; the pooled
+    // buffer is recycled once Dart has replied.
     private lateinit var binaryChannel: BasicMessageChannel<ByteBuffer>
+    private val messageBufferPool = MessageBufferPool()
+    private lateinit var messageBatcher: MessageBatcher
+
+    // Fire-and-forget writes: serialised messages arrive on "carlink/writes" and are answered at once,
+    // results reach Dart only as periodic "onWriteReport" summaries. Set up by openWriteQueue.
+    private lateinit var writeChannel: BasicMessageChannel<ByteBuffer>
+    private var writeQueueTransport: UsbWriteScheduler.Transport? = null
+    private var writeQueueTimeout = 0
+    private val writeReporter = WriteReporter { report -> channel.invokeMethod("onWriteReport", report) }
 
     override fun onAttachedToEngine(flutterPluginBinding: FlutterPlugin.FlutterPluginBinding) {
 
         channel = MethodChannel(flutterPluginBinding.binaryMessenger, "carlink")
         channel.setMethodCallHandler(this)
 
+        binaryChannel = BasicMessageChannel(flutterPluginBinding.binaryMessenger, "carlink/messages", BinaryCodec.INSTANCE)
+        messageBatcher = createMessageBatcher(MessageBatcher.DEFAULT_MAX_BATCH_BYTES, MessageBatcher.DEFAULT_MAX_BATCH_DELAY_MICROS)
+
+        writeChannel = BasicMessageChannel(flutterPluginBinding.binaryMessenger, "carlink/writes", BinaryCodec.INSTANCE)
+        writeChannel.setMessageHandler { message, reply ->
+            // the message buffer is only valid during this call, bulkTransfer needs an array anyway
+            if (message != null) {
+                val data = ByteArray(message.remaining())
+                message.get(data)
+                enqueueWrite(data)
+            }
+            reply.reply(null)
+        }
+
         textureRegistry = flutterPluginBinding.textureRegistry
         applicationContext = flutterPluginBinding.applicationContext
         usbManager = applicationContext?.getSystemService(UsbManager::class.java)
@@ -79,10 +112,16 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
         Thread.setDefaultUncaughtExceptionHandler(CrashHandler {
             log("[CRASH] UncaughtException: "+it)
         })
+
+        // Resolve and allocate the decoder while the UI comes up, the first createTexture reuses it
+        H264DecoderFactory.getInstance().prewarm()
     }
 
     override fun onDetachedFromEngine(binding: FlutterPlugin.FlutterPluginBinding) {
         channel.setMethodCallHandler(null)
+        writeChannel.setMessageHandler(null)
+        stopNativeWriters()
+        H264DecoderFactory.getInstance().releaseParked()
         usbManager = null
         applicationContext = null
     }
@@ -95,17 +134,52 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
     }
 
     fun readingLoopMessageWithData(type: Int, data: ByteArray) {
-        executors.mainThread().execute {
-            channel.invokeMethod("onReadingLoopMessage", mapOf("type" to type, "data" to data))
-        }
+        val message = messageBufferPool.acquire(READING_LOOP_MESSAGE_HEADER_LENGTH + data.size)
+        message.putInt(type).putInt(data.size).put(data)
+        readingLoopMessage(message)
     }
 
     fun readingLoopMessage(type: Int) {
-        executors.mainThread().execute {
-            channel.invokeMethod("onReadingLoopMessage", mapOf("type" to type))
+        val message = messageBufferPool.acquire(READING_LOOP_MESSAGE_HEADER_LENGTH)
+        message.putInt(type).putInt(-1)
+        readingLoopMessage(message)
+    }
+
+    // message is framed up to its position, it is copied into the current batch and can be reused right away
+    private fun readingLoopMessage(message: ByteBuffer) {
+        messageBatcher.add(message)
+        messageBufferPool.release(message)
+    }
+
+    // everything that writes to the OUT endpoint on its own, before the connection goes away
+    private fun stopNativeWriters() {
+        micUplink?.stop()
+        micUplink = null
+        frameRequestTicker?.stop()
+        frameRequestTicker = null
+        linkWatchdog?.stop()
+        linkWatchdog = null
+        writeQueueTransport = null
+    }
+
+    private fun enqueueWrite(data: ByteArray) {
+        val transport = writeQueueTransport
+        if (transport == null) {
+            // not opened or already closed, still shows up as a failure
+            writeReporter.onComplete(data.size, -1)
+            return
+        }
+
+        usbWriteScheduler.submit(transport, data, 0, data.size, writeQueueTimeout) { actualLength ->
+            writeReporter.onComplete(data.size, actualLength)
         }
     }
 
+    private fun createMessageBatcher(maxBatchBytes: Int, maxBatchDelayMicros: Long) =
+        MessageBatcher(messageBufferPool, maxBatchBytes, maxBatchDelayMicros) { batch ->
+            binaryChannel.send(batch) { messageBufferPool.release(batch) }
+        }
+
     fun readingLoopError(error: String) {
         // Check if this is a codec reset and track for crash recovery
         if (error.contains("reset codec") || error.contains("IllegalStateException")) {
@@ -145,10 +219,10 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
             // Stop reading loop gracefully
             readLoopRunning = false
             
-            // Reset H.264 renderer using proper method
+            // Last resort, skip the flush/reconfigure tiers and get a brand new codec
             h264Renderer?.let { renderer ->
                 try {
-                    renderer.reset() // Uses our corrected reset logic
+                    renderer.recover(H264Renderer.RecoveryTier.RECREATE)
                 } catch (e: Exception) {
                     log("[EMERGENCY CLEANUP] H264 renderer reset failed: ${e.message}")
                 }
@@ -217,13 +291,22 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
                 val width = call.argument<Int>("width")!!
                 val height = call.argument<Int>("height")!!
 
+                val previousRenderer = h264Renderer
                 if (h264Renderer != null) {
                     h264Renderer?.stop()
                 }
 
+                // usbIn is the only writer and codec input filling is serialized, so the ring buffer can skip locking.
+                // The ring is the largest allocation of the plugin, keep it off the Java heap.
+                // Live projection prefers skipping to the next keyframe over replaying seconds of stale video
                 h264Renderer = H264Renderer(applicationContext, width, height, texture,
-                    surfaceTextureEntry!!.id().toInt(), LogCallback { m ->  log("[H264Renderer] " + m) })
+                    surfaceTextureEntry!!.id().toInt(), LogCallback { m ->  log("[H264Renderer] " + m) },
+                    PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER,
+                    PacketRingByteBuffer.Backing.DIRECT,
+                    PacketRingByteBuffer.OverflowPolicy.DROP_UNTIL_IDR)
 
+                // a recreated texture starts from the last SPS/PPS and keyframe instead of a black screen
+                h264Renderer?.inheritStreamState(previousRenderer)
                 h264Renderer?.start()
 
                 result.success(surfaceTextureEntry!!.id())
@@ -398,6 +481,8 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
 
             "closeDevice" -> {
                 log("[USB] Closing device connection")
+                stopNativeWriters()
+                log("[USB] Writes: " + usbWriteScheduler.stats)
                 usbDeviceConnection?.close()
                 usbDeviceConnection = null
                 usbDevice = null
@@ -506,6 +591,15 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
                     )!!
                     
                 val timeout = call.argument<Int>("timeout")!!
+                // several transfers stay queued on the IN endpoint, the bus doesn't wait for each round trip
+                val transferCount = call.argument<Int>("transferCount") ?: UsbBulkReader.DEFAULT_TRANSFER_COUNT
+                val transferSize = call.argument<Int>("transferSize") ?: UsbBulkReader.DEFAULT_TRANSFER_SIZE
+                // messages collected per delivery to Dart
+                val batchMaxBytes = call.argument<Int>("batchMaxBytes") ?: MessageBatcher.DEFAULT_MAX_BATCH_BYTES
+                val batchDelayMicros = call.argument<Number>("batchDelayMicros")?.toLong() ?: MessageBatcher.DEFAULT_MAX_BATCH_DELAY_MICROS
+                messageBatcher = createMessageBatcher(batchMaxBytes, batchDelayMicros)
+                // PCM is played here, Dart only gets the audio start/stop/volume messages
+                val nativeAudio = call.argument<Boolean>("nativeAudio") ?: true
 
                 executors.usbIn().execute {
 
@@ -514,33 +608,32 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
 
                     var streamingNotified = false
 
-                    val headerBuffer = ByteBuffer.allocate(CarLinkMessageHeader.MESSAGE_LENGTH)
-                    val header = CarLinkMessageHeader(0,0)
+                    val reader = UsbBulkReader(connection, endpoint, transferCount, transferSize, timeout) { message -> log(message) }
+                    if (!reader.open()) {
+                        readLoopRunning = false
+                    }
+                    // every frame of a completed transfer is handled before the next one is waited for
+                    val framer = CarLinkMessageFramer(reader)
+                    activeReader = reader
+                    val audioSink = if (nativeAudio) AudioSink { message -> log(message) } else null
 
                     var actualLength = 0
 
                     while (readLoopRunning) {
 
-                        // read header
-                        headerBuffer.clear()
-                        actualLength = readByChunks(connection, endpoint, headerBuffer.array(), 0, CarLinkMessageHeader.MESSAGE_LENGTH, timeout)
-
-                        if (actualLength < 0) {
-                            break
-                        }
-
-//                        log("[READ LOOP] read header, actualLength="+actualLength)
-
                         try {
-                            header.readFromBuffer(headerBuffer)
+                            // read header
+                            val header = framer.readHeader() ?: break
+                            linkWatchdog?.onInbound(header.type)
 
                           // log("[READ LOOP] header, type="+header.type+", length="+header.length)
                             if (header.length > 0) {
+                                val renderer = h264Renderer
                                 // video data direct render
-                                if (header.isVideoData) {
-                                    h264Renderer?.processDataDirect(header.length, 20) { bytes, offset ->
-                                        actualLength = readByChunks(connection, endpoint, bytes, offset, header.length, timeout)
-                                    }
+                                if (header.isVideoData && renderer != null) {
+                                    renderer.processDataDirect(header.length, 20, PacketRingByteBuffer.ByteBufferWriteCallback { target ->
+                                        actualLength = framer.readBody(target)
+                                    })
 
                                     if (actualLength < 0) {
                                         break
@@ -552,15 +645,37 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
                                         streamingNotified = true
                                         readingLoopMessageWithData(header.type, ByteArray(0))
                                     }
+                                } else if (header.isVideoData) {
+                                    // without a renderer the video body still has to leave the stream
+                                    framer.readBody() ?: break
+                                } else if (header.isAudioData && audioSink != null && AudioSink.isPcm(header.length)) {
+                                    // straight from the USB transfer to the AudioTrack, no channel crossing
+                                    val pcm = messageBufferPool.acquire(header.length)
+                                    pcm.limit(header.length)
+
+                                    if (framer.readBody(pcm) < 0) {
+                                        messageBufferPool.release(pcm)
+                                        break
+                                    }
+
+                                    audioSink.writePcm(pcm, 0, header.length)
+                                    messageBufferPool.release(pcm)
                                 } else {
-                                    var bodyBytes = ByteArray(header.length)
-                                    actualLength = readByChunks(connection, endpoint, bodyBytes, 0, header.length, timeout)
+                                    // the body is read straight into the buffer that goes to Dart
+                                    val message = messageBufferPool.acquire(READING_LOOP_MESSAGE_HEADER_LENGTH + header.length)
+                                    message.putInt(header.type).putInt(header.length)
+                                    message.limit(READING_LOOP_MESSAGE_HEADER_LENGTH + header.length)
 
-                                    if (actualLength < 0) {
+                                    if (framer.readBody(message) < 0) {
+                                        messageBufferPool.release(message)
                                         break
                                     }
 
-                                    readingLoopMessageWithData(header.type, bodyBytes)
+                                    if (header.isAudioData) {
+                                        audioSink?.onControl(message, READING_LOOP_MESSAGE_HEADER_LENGTH, header.length)
+                                    }
+
+                                    readingLoopMessage(message)
                                 }
                             }
                             else {
@@ -572,7 +687,12 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
                         }
                     }
 
-                    log("[USB] Read loop stopped")
+                    activeReader = null
+                    reader.close()
+                    log("[USB] Read loop stopped, " + framer.stats + ", message buffers: " + messageBufferPool.stats + ", batches: " + messageBatcher.stats)
+                    // stats first, they include the depth of the live tracks
+                    audioSink?.let { log("[AUDIO] " + it.stats) }
+                    audioSink?.release()
 
                     readLoopRunning = false;
                     readingLoopError("USBReadError readingLoopError error, return actualLength=-1")
@@ -601,27 +721,156 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
                 val timeout = call.argument<Int>("timeout")!!
 
                 executors.usbIn().execute {
-                   // var buffer = readByChunks(connection, endpoint, maxLength, timeout);
-
                     executors.mainThread().execute {
-//                        if (buffer == null) {
-//                            result.error(
-//                                "USBReadError",
-//                                "bulkTransferIn error, return actuallength=-1",
-//                                ""
-//                            )
-//                        } else {
-//                            if (isVideoData) {
-//                                h264Renderer?.processData(buffer.array(), 20, maxLength - 20)
-//                                result.success(ByteArray(0))
-//                            } else {
-//                                result.success(buffer)
-//                            }
-//                        }
                     }
                 }
             }
 
+            "startMicUplink" -> {
+                if (micUplink?.isRunning == true) {
+                    return result.error("IllegalState", "micUplink running", null)
+                }
+
+                val device =
+                    usbDevice ?: return result.error("IllegalState", "usbDevice null", null)
+                val connection = usbDeviceConnection
+                    ?: return result.error(
+                        "IllegalState",
+                        "usbDeviceConnection null",
+                        null
+                    )
+                val endpointMap = call.argument<Map<String, Any>>("endpoint")!!
+                val endpoint =
+                    device.findEndpoint(
+                        endpointMap["endpointNumber"] as Int,
+                        endpointMap["direction"] as Int
+                    )!!
+                val timeout = call.argument<Int>("timeout")!!
+                val decodeType = call.argument<Int>("decodeType") ?: MicUplink.DEFAULT_DECODE_TYPE
+                val audioType = call.argument<Int>("audioType") ?: MicUplink.DEFAULT_AUDIO_TYPE
+
+                // captured and sent natively, the frames never reach Dart
+                val uplink = MicUplink(connection, endpoint, timeout, decodeType, audioType, usbWriteScheduler) { message -> log(message) }
+                if (!uplink.start()) {
+                    return result.error("AudioError", "microphone unavailable", null)
+                }
+
+                micUplink = uplink
+                result.success(null)
+            }
+
+            "stopMicUplink" -> {
+                micUplink?.stop()
+                micUplink = null
+
+                result.success(null)
+            }
+
+            "startFrameRequests" -> {
+                val device =
+                    usbDevice ?: return result.error("IllegalState", "usbDevice null", null)
+                val connection = usbDeviceConnection
+                    ?: return result.error(
+                        "IllegalState",
+                        "usbDeviceConnection null",
+                        null
+                    )
+                val endpointMap = call.argument<Map<String, Any>>("endpoint")!!
+                val endpoint =
+                    device.findEndpoint(
+                        endpointMap["endpointNumber"] as Int,
+                        endpointMap["direction"] as Int
+                    )!!
+                val timeout = call.argument<Int>("timeout")!!
+                val intervalMs = call.argument<Int>("intervalMs")!!
+
+                // a new phone may come with another interval
+                frameRequestTicker?.stop()
+
+                val transport = UsbWriteScheduler.BulkTransport(connection, endpoint)
+                val ticker = FrameRequestTicker(usbWriteScheduler, transport, timeout, intervalMs, {
+                    h264Renderer?.sampleDecoderLoad() ?: H264Renderer.DecoderLoad.BALANCED
+                }) { message -> log(message) }
+                ticker.start()
+                frameRequestTicker = ticker
+                linkWatchdog?.setFrameRequestIntervalMs(ticker.maxIntervalMs)
+
+                result.success(null)
+            }
+
+            "stopFrameRequests" -> {
+                frameRequestTicker?.stop()
+                frameRequestTicker = null
+                linkWatchdog?.setFrameRequestIntervalMs(0)
+
+                result.success(null)
+            }
+
+            "startLinkWatchdog" -> {
+                val device =
+                    usbDevice ?: return result.error("IllegalState", "usbDevice null", null)
+                val connection = usbDeviceConnection
+                    ?: return result.error(
+                        "IllegalState",
+                        "usbDeviceConnection null",
+                        null
+                    )
+                val endpointMap = call.argument<Map<String, Any>>("endpoint")!!
+                val endpoint =
+                    device.findEndpoint(
+                        endpointMap["endpointNumber"] as Int,
+                        endpointMap["direction"] as Int
+                    )!!
+                val timeout = call.argument<Int>("timeout")!!
+                val heartbeatIntervalMs = call.argument<Int>("heartbeatIntervalMs") ?: LinkWatchdog.DEFAULT_HEARTBEAT_INTERVAL_MS
+                val stallTimeoutMs = call.argument<Int>("stallTimeoutMs") ?: LinkWatchdog.DEFAULT_STALL_TIMEOUT_MS
+
+                linkWatchdog?.stop()
+
+                // a stalled read fails at once, the read loop ends and Dart reconnects
+                val transport = UsbWriteScheduler.BulkTransport(connection, endpoint)
+                val watchdog = LinkWatchdog(usbWriteScheduler, transport, timeout, heartbeatIntervalMs, stallTimeoutMs, {
+                    activeReader?.abort()
+                }) { message -> log(message) }
+                frameRequestTicker?.let { watchdog.setFrameRequestIntervalMs(it.maxIntervalMs) }
+                watchdog.start()
+                linkWatchdog = watchdog
+
+                result.success(null)
+            }
+
+            "stopLinkWatchdog" -> {
+                linkWatchdog?.stop()
+                linkWatchdog = null
+
+                result.success(null)
+            }
+
+            "getLinkStats" -> {
+                result.success(linkWatchdog?.statsMap)
+            }
+
+            "openWriteQueue" -> {
+                val device =
+                    usbDevice ?: return result.error("IllegalState", "usbDevice null", null)
+                val connection = usbDeviceConnection
+                    ?: return result.error(
+                        "IllegalState",
+                        "usbDeviceConnection null",
+                        null
+                    )
+                val endpointMap = call.argument<Map<String, Any>>("endpoint")!!
+                val endpoint =
+                    device.findEndpoint(
+                        endpointMap["endpointNumber"] as Int,
+                        endpointMap["direction"] as Int
+                    )!!
+
+                writeQueueTimeout = call.argument<Int>("timeout")!!
+                writeQueueTransport = UsbWriteScheduler.BulkTransport(connection, endpoint)
+                result.success(null)
+            }
+
             "bulkTransferOut" -> {
                 val device =
                     usbDevice ?: return result.error("IllegalState", "usbDevice null", null)
@@ -640,10 +889,8 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
                 val timeout = call.argument<Int>("timeout")!!
                 val data = call.argument<ByteArray>("data")!!
 
-                executors.usbOut().execute {
-                    val actualLength =
-                        connection.bulkTransfer(endpoint, data, data.count(), timeout)
-
+                val transport = UsbWriteScheduler.BulkTransport(connection, endpoint)
+                usbWriteScheduler.submit(transport, data, 0, data.size, timeout) { actualLength ->
                     executors.mainThread().execute {
                         if (actualLength < 0) {
                             result.error("USBWriteError", "bulkTransferOut error, actualLength=-1", null)
@@ -661,46 +908,7 @@ class CarlinkPlugin : FlutterPlugin, MethodCallHandler {
     }
 }
 
-fun readByChunks(connection: UsbDeviceConnection, endpoint: UsbEndpoint, buffer: ByteArray, bufferOffset: Int, maxLength: Int, timeout: Int): Int {
-    var limit = 16384
-    var offset = 0
-    
-    // Critical bounds checking to prevent ArrayIndexOutOfBoundsException
-    if (bufferOffset < 0 || maxLength < 0) {
-        Log.e("CARLINK", "[USB] CRITICAL: Invalid parameters - bufferOffset: $bufferOffset, maxLength: $maxLength")
-        return -1
-    }
-    
-    if (bufferOffset + maxLength > buffer.size) {
-        Log.e("CARLINK", "[USB] CRITICAL: Buffer overrun - buffer.size: ${buffer.size}, bufferOffset: $bufferOffset, maxLength: $maxLength")
-        return -1
-    }
-
-    while (offset < maxLength) {
-        var lengthToRead = minOf(limit, maxLength - offset)
-        
-        // Additional safety check for each read
-        if (bufferOffset + offset + lengthToRead > buffer.size) {
-            Log.w("CARLINK", "[USB] WARNING: Truncating read to prevent buffer overrun")
-            lengthToRead = buffer.size - bufferOffset - offset
-            if (lengthToRead <= 0) {
-                Log.e("CARLINK", "[USB] CRITICAL: No space left in buffer")
-                return offset // Return what we've read so far
-            }
-        }
-        
-        var actualLength = connection.bulkTransfer(endpoint, buffer, bufferOffset + offset, lengthToRead, timeout)
-
-        if (actualLength < 0) {
-            return actualLength
-        }
-        else {
-            offset += actualLength
-        }
-    }
-
-    return maxLength
-}
+const val READING_LOOP_MESSAGE_HEADER_LENGTH = 8
 
 fun UsbDevice.findInterface(id: Int, alternateSetting: Int): UsbInterface? {
     for (i in 0..interfaceCount) {
@@ -0,0 +1,108 @@
+package ru.bukharskii.carlink;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// One long-lived thread that drains the decoder's work whenever it is signalled, instead of a task
+// per frame on a pool: the USB read loop signals a new packet, the codec callback a new buffer, and
+// the thread parks until either happens. Signals that arrive while it drains fold into one more
+// pass, a signal costs an atomic flag and at most one unpark, nothing is allocated or queued.
+public class CodecFeeder {
+    public interface Work {
+        // feeder thread; takes everything that can go now, the next signal brings it back.
+        // Must not throw, an exception ends the thread
+        void drain();
+    }
+
+    private final ThreadFactory threadFactory;
+    private final Work work;
+
+    private final AtomicBoolean signalled = new AtomicBoolean(false);
+    private volatile Thread thread;
+
+    private volatile long passes = 0;
+    private final AtomicLong signals = new AtomicLong();
+
+    public CodecFeeder(String threadName, int androidPriority, Work work) {
+        this(AppExecutors.namedThreadFactory(threadName, androidPriority), work);
+    }
+
+    CodecFeeder(ThreadFactory threadFactory, Work work) {
+        this.threadFactory = threadFactory;
+        this.work = work;
+    }
+
+    public synchronized void start() {
+        if (thread != null) return;
+
+        Thread feeder = threadFactory.newThread(this::loop);
+        feeder.setDaemon(true);
+        thread = feeder;
+        feeder.start();
+    }
+
+    // waits for a pass in progress to finish, whatever the work drains can be torn down once this
+    // returns; held across the join so a start() from another thread can't overlap the old pass.
+    // A signal left over is picked up after the next start()
+    public synchronized void stop() {
+        Thread feeder = thread;
+        if (feeder == null) return;
+
+        thread = null;
+        LockSupport.unpark(feeder);
+
+        // called from a pass, it ends with that pass
+        if (feeder == Thread.currentThread()) return;
+
+        boolean interrupted = false;
+        while (feeder.isAlive()) {
+            try {
+                feeder.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public boolean isRunning() {
+        return thread != null;
+    }
+
+    /**
+     * Any thread: there is something to drain.
+     */
+    public void signal() {
+        signals.incrementAndGet();
+        if (signalled.getAndSet(true)) return;
+
+        Thread feeder = thread;
+        if (feeder != null) {
+            LockSupport.unpark(feeder);
+        }
+    }
+
+    private void loop() {
+        Thread self = Thread.currentThread();
+
+        // a stop() followed by start() hands over to a new thread, this one just leaves
+        while (thread == self) {
+            // cleared before the pass, a signal during it means another pass
+            if (!signalled.getAndSet(false)) {
+                LockSupport.park(this);
+                continue;
+            }
+
+            work.drain();
+            passes++;
+        }
+    }
+
+    public String getStats() {
+        return "signals: " + signals.get() + ", passes: " + passes;
+    }
+}
@@ -0,0 +1,167 @@
+package ru.bukharskii.carlink;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Sends the frame request command (Command 12) to the dongle at the phone's frameInterval, timed
+// natively so the video cadence doesn't depend on the Dart event loop. Ticks follow absolute
+// deadlines, a late tick doesn't push the following ones back. Each tick samples the decoder load:
+// requests come faster while the decoder starves, slower while packets pile up, and drift back to
+// the configured interval otherwise, between half and twice that.
+public class FrameRequestTicker {
+    private static final String LOG_TAG = "CARLINK";
+
+    public interface LoadSource {
+        H264Renderer.DecoderLoad sample();
+    }
+
+    // serialised once: header + uint32 CommandMapping.frame
+    private static final byte[] FRAME_COMMAND;
+
+    static {
+        int commandType = 0x08;
+        FRAME_COMMAND = ByteBuffer.allocate(CarLinkMessageHeader.MESSAGE_LENGTH + 4).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0x55aa55aa)
+                .putInt(4)
+                .putInt(commandType)
+                .putInt(~commandType)
+                .putInt(12)
+                .array();
+    }
+
+    private final UsbWriteScheduler writeScheduler;
+    private final UsbWriteScheduler.Transport transport;
+    private final int timeoutMs;
+    private final LoadSource loadSource;
+    private final LogCallback logCallback;
+
+    private final long baseIntervalNs;
+    private final long minIntervalNs;
+    private final long maxIntervalNs;
+
+    private ScheduledExecutorService timer;
+
+    // written by the timer thread only
+    private volatile long intervalNs;
+    private long nextTickNanos;
+
+    // a request still queued when the next tick comes makes that tick a no-op
+    private volatile boolean requestPending = false;
+
+    private volatile long requestsSent = 0;
+    private volatile long requestsFailed = 0;
+    private volatile long ticksSkipped = 0;
+    private volatile long ticksFaster = 0;
+    private volatile long ticksSlower = 0;
+    private volatile long tickLatenessMaxNs = 0;
+
+    public FrameRequestTicker(UsbWriteScheduler writeScheduler, UsbWriteScheduler.Transport transport, int timeoutMs, int intervalMs, LoadSource loadSource, LogCallback logCallback) {
+        if (intervalMs < 1) {
+            throw new IllegalArgumentException("intervalMs: " + intervalMs);
+        }
+
+        this.writeScheduler = writeScheduler;
+        this.transport = transport;
+        this.timeoutMs = timeoutMs;
+        this.loadSource = loadSource;
+        this.logCallback = logCallback;
+        this.baseIntervalNs = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.minIntervalNs = baseIntervalNs / 2;
+        this.maxIntervalNs = baseIntervalNs * 2;
+        this.intervalNs = baseIntervalNs;
+    }
+
+    private void log(String message) {
+        Log.d(LOG_TAG, "[FRAME] " + message);
+        if (logCallback != null) {
+            logCallback.log("[FRAME] " + message);
+        }
+    }
+
+    public synchronized void start() {
+        if (timer != null) return;
+
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1,
+                AppExecutors.namedThreadFactory("Carlink-FrameTicker", android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY));
+        executor.setRemoveOnCancelPolicy(true);
+        timer = executor;
+
+        nextTickNanos = System.nanoTime();
+        executor.execute(() -> tick(executor));
+        log("frame requests every " + TimeUnit.NANOSECONDS.toMillis(baseIntervalNs) + "ms");
+    }
+
+    // the longest the ticker stretches the interval to under load
+    public int getMaxIntervalMs() {
+        return (int) TimeUnit.NANOSECONDS.toMillis(maxIntervalNs);
+    }
+
+    public synchronized void stop() {
+        if (timer == null) return;
+
+        timer.shutdownNow();
+        timer = null;
+        log("stopped, " + getStats());
+    }
+
+    // timer thread
+    private void tick(ScheduledExecutorService executor) {
+        long now = System.nanoTime();
+        tickLatenessMaxNs = Math.max(tickLatenessMaxNs, now - nextTickNanos);
+
+        if (requestPending) {
+            ticksSkipped++;
+        } else {
+            requestPending = true;
+            writeScheduler.submit(UsbWriteScheduler.Priority.CONTROL, transport, FRAME_COMMAND, 0, FRAME_COMMAND.length, timeoutMs, actualLength -> {
+                if (actualLength < 0) {
+                    requestsFailed++;
+                } else {
+                    requestsSent++;
+                }
+                requestPending = false;
+            });
+        }
+
+        adapt(loadSource != null ? loadSource.sample() : H264Renderer.DecoderLoad.BALANCED);
+
+        nextTickNanos += intervalNs;
+        // too late for the deadline: start over from now instead of bursting to catch up
+        if (nextTickNanos < now) {
+            nextTickNanos = now + intervalNs;
+        }
+
+        synchronized (this) {
+            // stopped meanwhile, or stopped and started again with a new timer
+            if (timer == executor) {
+                executor.schedule(() -> tick(executor), nextTickNanos - now, TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    private void adapt(H264Renderer.DecoderLoad load) {
+        switch (load) {
+            case STARVED:
+                intervalNs = Math.max(minIntervalNs, intervalNs - intervalNs / 8);
+                ticksFaster++;
+                break;
+            case SATURATED:
+                intervalNs = Math.min(maxIntervalNs, intervalNs + intervalNs / 4);
+                ticksSlower++;
+                break;
+            default:
+                intervalNs += (baseIntervalNs - intervalNs) / 16;
+                break;
+        }
+    }
+
+    public String getStats() {
+        return String.format("sent: %d, failed: %d, skipped: %d, faster: %d, slower: %d, interval: %.1fms, max lateness: %.1fms",
+                requestsSent, requestsFailed, ticksSkipped, ticksFaster, ticksSlower, intervalNs / 1e6, tickLatenessMaxNs / 1e6);
+    }
+}
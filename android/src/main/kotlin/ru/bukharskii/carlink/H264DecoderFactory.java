@@ -0,0 +1,227 @@
+package ru.bukharskii.carlink;
+
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaCodecList;
+import android.os.Build;
+import android.util.Log;
+
+// Resolves the H.264 decoder once per process and keeps one stopped decoder around,
+// so a new or restarted H264Renderer skips the name probing and the component allocation.
+public class H264DecoderFactory {
+    private static final String LOG_TAG = "CARLINK";
+    private static final String MIME_TYPE = "video/avc";
+
+    // Intel Quick Sync on the GM head units, known to work
+    private static final String PREFERRED_DECODER = "OMX.Intel.VideoDecoder.AVC";
+
+    public static final class DecoderInfo {
+        public final String name;
+        public final boolean hardwareAccelerated;
+        // null when the decoder was only found by createDecoderByType
+        public final MediaCodecInfo.CodecCapabilities capabilities;
+
+        DecoderInfo(String name, boolean hardwareAccelerated, MediaCodecInfo.CodecCapabilities capabilities) {
+            this.name = name;
+            this.hardwareAccelerated = hardwareAccelerated;
+            this.capabilities = capabilities;
+        }
+
+        public boolean isSizeSupported(int width, int height) {
+            if (capabilities == null || capabilities.getVideoCapabilities() == null) {
+                return true;
+            }
+            return capabilities.getVideoCapabilities().isSizeSupported(width, height);
+        }
+
+        @Override
+        public String toString() {
+            return name + (hardwareAccelerated ? " (hardware)" : " (software)");
+        }
+    }
+
+    private static volatile H264DecoderFactory INSTANCE;
+
+    private DecoderInfo decoderInfo;
+    // stopped (uninitialized) decoder, ready for configure()
+    private MediaCodec parkedCodec;
+
+    private long codecsCreated = 0;
+    private long codecsReused = 0;
+
+    private H264DecoderFactory() {
+    }
+
+    public static H264DecoderFactory getInstance() {
+        if (INSTANCE == null) {
+            synchronized (H264DecoderFactory.class) {
+                if (INSTANCE == null) {
+                    INSTANCE = new H264DecoderFactory();
+                }
+            }
+        }
+        return INSTANCE;
+    }
+
+    private void log(String message) {
+        Log.d(LOG_TAG, "[DecoderFactory] " + message);
+    }
+
+    public synchronized DecoderInfo getDecoderInfo() {
+        if (decoderInfo == null) {
+            long startTime = System.currentTimeMillis();
+            decoderInfo = resolveDecoder();
+            log("resolved " + decoderInfo + " in " + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return decoderInfo;
+    }
+
+    private DecoderInfo resolveDecoder() {
+        MediaCodecInfo fallback = null;
+
+        try {
+            for (MediaCodecInfo info : new MediaCodecList(MediaCodecList.REGULAR_CODECS).getCodecInfos()) {
+                if (info.isEncoder() || !supportsAvc(info)) {
+                    continue;
+                }
+
+                if (PREFERRED_DECODER.equals(info.getName())) {
+                    return toDecoderInfo(info);
+                }
+
+                // first hardware decoder wins, the list is ordered by preference
+                if (fallback == null && isHardwareAccelerated(info)) {
+                    fallback = info;
+                }
+            }
+        } catch (Exception e) {
+            log("codec list not available: " + e.toString());
+        }
+
+        if (fallback != null) {
+            return toDecoderInfo(fallback);
+        }
+
+        // Let the platform choose, only the name is known
+        try {
+            MediaCodec codec = MediaCodec.createDecoderByType(MIME_TYPE);
+            String name = codec.getName();
+            codec.release();
+            return new DecoderInfo(name, false, null);
+        } catch (Exception e) {
+            log("no decoder for " + MIME_TYPE + ": " + e.toString());
+            return new DecoderInfo(PREFERRED_DECODER, true, null);
+        }
+    }
+
+    private static boolean supportsAvc(MediaCodecInfo info) {
+        for (String type : info.getSupportedTypes()) {
+            if (MIME_TYPE.equalsIgnoreCase(type)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isHardwareAccelerated(MediaCodecInfo info) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) {
+            return info.isHardwareAccelerated();
+        }
+
+        String name = info.getName();
+        return !name.startsWith("OMX.google.") && !name.startsWith("c2.android.");
+    }
+
+    private static DecoderInfo toDecoderInfo(MediaCodecInfo info) {
+        MediaCodecInfo.CodecCapabilities capabilities = null;
+        try {
+            capabilities = info.getCapabilitiesForType(MIME_TYPE);
+        } catch (Exception e) {
+            // name is enough to create it
+        }
+        return new DecoderInfo(info.getName(), isHardwareAccelerated(info), capabilities);
+    }
+
+    /**
+     * Hands out the parked decoder if there is one, otherwise creates the resolved decoder.
+     * The result is in the uninitialized state, ready for setCallback() and configure().
+     */
+    public synchronized MediaCodec obtain() throws Exception {
+        if (parkedCodec != null) {
+            MediaCodec codec = parkedCodec;
+            parkedCodec = null;
+            codecsReused++;
+            return codec;
+        }
+
+        DecoderInfo info = getDecoderInfo();
+        try {
+            MediaCodec codec = MediaCodec.createByCodecName(info.name);
+            codecsCreated++;
+            return codec;
+        } catch (Exception e) {
+            log("create " + info.name + " failed, falling back to platform choice: " + e.toString());
+            decoderInfo = null;
+        }
+
+        try {
+            MediaCodec codec = MediaCodec.createDecoderByType(MIME_TYPE);
+            codecsCreated++;
+            return codec;
+        } catch (Exception e) {
+            throw new Exception("No H.264 decoder available", e);
+        }
+    }
+
+    /**
+     * Takes back a decoder that was stopped cleanly. Only one is kept, anything that can't be
+     * reused (failed stop, slot taken) is released.
+     */
+    public synchronized void recycle(MediaCodec codec) {
+        if (codec == null) return;
+
+        if (parkedCodec == null) {
+            try {
+                // back to the uninitialized state, drops the callback of the previous owner
+                codec.reset();
+                parkedCodec = codec;
+                return;
+            } catch (Exception e) {
+                log("recycle failed, releasing: " + e.toString());
+            }
+        }
+
+        codec.release();
+    }
+
+    /**
+     * Resolves the decoder and allocates one instance in the background, so the first
+     * H264Renderer start (texture creation, dongle handshake) doesn't pay for it.
+     */
+    public void prewarm() {
+        AppExecutors.getInstance().mediaCodec().execute(() -> {
+            synchronized (this) {
+                if (parkedCodec != null) return;
+
+                try {
+                    long startTime = System.currentTimeMillis();
+                    parkedCodec = obtain();
+                    log("prewarmed " + getDecoderInfo() + " in " + (System.currentTimeMillis() - startTime) + "ms");
+                } catch (Exception e) {
+                    log("prewarm failed: " + e.toString());
+                }
+            }
+        });
+    }
+
+    public synchronized void releaseParked() {
+        if (parkedCodec != null) {
+            parkedCodec.release();
+            parkedCodec = null;
+        }
+    }
+
+    public synchronized String getStats() {
+        return "decoder: " + decoderInfo + ", created: " + codecsCreated + ", reused: " + codecsReused + ", parked: " + (parkedCodec != null);
+    }
+}
@@ -17,18 +17,42 @@ import androidx.annotation.NonNull;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
 
 
 public class H264Renderer {
+    // Escalating ways to get a stuck or failed decoder going again, cheapest first
+    public enum RecoveryTier {
+        // flush() + start(): drops in-flight buffers, keeps the codec and its configuration
+        FLUSH,
+        // stop() + configure() + start() on the same codec instance, for recoverable CodecExceptions
+        RECONFIGURE,
+        // release and create a new codec, for fatal errors
+        RECREATE
+    }
+
+    // How well the stream keeps the decoder fed, see sampleDecoderLoad()
+    public enum DecoderLoad {
+        STARVED,
+        BALANCED,
+        SATURATED
+    }
+
     private static final String LOG_TAG = "CARLINK";
     protected final SurfaceTexture texture;
     private MediaCodec mCodec;
     private MediaCodec.Callback codecCallback;
-    private ArrayList<Integer> codecAvailableBufferIndexes = new ArrayList<>(10);
+    // Input buffer indexes from the codec callback thread to the feeder thread, each tagged with the
+    // codecGeneration it belongs to: a flush doesn't have to clear the queue, the feeder drops the stale ones
+    private static final int INPUT_INDEX_BITS = 16;
+    private static final int INPUT_INDEX_MASK = (1 << INPUT_INDEX_BITS) - 1;
+    private static final int INPUT_GENERATION_MASK = 0x7fff;
+    private final IntRingQueue availableInputIndexes = new IntRingQueue(64);
+    // feeder side state: ring reads, stream replay, catch-up
+    private final Object feedLock = new Object();
     private int width;
     private int height;
     private Surface surface;
@@ -36,7 +60,11 @@ public class H264Renderer {
     private boolean bufferLoopRunning = false;
     private LogCallback logCallback;
 
-    private AppExecutors executors = AppExecutors.getInstance();
+    // decoder input and output release, each on its own thread woken per packet / buffer
+    private final CodecFeeder inputFeeder = new CodecFeeder("Carlink-VideoFeed",
+            android.os.Process.THREAD_PRIORITY_URGENT_DISPLAY, this::feedAvailableInput);
+    private final CodecFeeder outputReleaser = new CodecFeeder("Carlink-VideoRelease",
+            android.os.Process.THREAD_PRIORITY_DISPLAY, this::releasePendingOutput);
 
     private PacketRingByteBuffer ringBuffer;
     
@@ -57,12 +85,79 @@ public class H264Renderer {
     private boolean poolInitialized = false;
     
     // Performance monitoring
-    private long totalFramesReceived = 0;
+    private volatile long totalFramesReceived = 0; // written by the USB read loop only
     private long totalFramesDecoded = 0;
     private long totalFramesDropped = 0;
     private long lastStatsTime = 0;
     private long codecResetCount = 0;
     private long totalBytesProcessed = 0;
+    private long codecStartTime = 0;
+    private boolean awaitingFirstFrame = false;
+
+    // Bumped whenever buffer indexes of the running codec become invalid (flush, reconfigure),
+    // callbacks and output releases from before are ignored
+    private volatile int codecGeneration = 0;
+    private MediaFormat mediaFormat;
+
+    // Recovery metrics, per tier that brought the codec back
+    private static final long AUTO_RECREATE_MIN_INTERVAL_MS = 5000; // crash-loop guard for automatic recreation
+    private final long[] recoveriesByTier = new long[RecoveryTier.values().length];
+    private long recoveryEscalations = 0;
+    private long lastRecoveryDurationMs = 0;
+    private long lastAutoRecreateTime = 0;
+
+    // Stream state replayed into a freshly started codec, so it can output a frame right away instead of
+    // waiting seconds for the phone's next keyframe. Reader side, guarded by feedLock.
+    private static final int MAX_CACHED_KEYFRAME_SIZE = 2 * 1024 * 1024;
+    private ByteBuffer cachedKeyframe; // last IDR access unit, direct, between 0 and limit
+    private byte[] inheritedCodecConfig; // from a replaced renderer, until this stream sends its own SPS/PPS
+    private boolean replayConfigPending = false;
+    private boolean replayKeyframePending = false;
+    private long streamReplayCount = 0;
+
+    // Output pacing. Inputs carry their arrival time (System.nanoTime() in microseconds) as presentation time,
+    // a decoded frame is displayed at arrival + smoothed decode latency, which hides decode time jitter.
+    // Only the newest decoded frame waits for its release, a newer one drops it (latest wins).
+    private static final long FRAME_INTERVAL_NS = 1_000_000_000L / 60;
+    private static final long MAX_RENDER_AHEAD_NS = 2 * FRAME_INTERVAL_NS;
+    private final Object pendingOutputLock = new Object();
+    private int pendingOutputIndex = -1;
+    private long pendingOutputPtsUs;
+    private int pendingOutputGeneration;
+    private MediaCodec pendingOutputCodec;
+    private volatile long smoothedDecodeLatencyNs = 0; // written by the codec callback thread only
+    private long lastRenderTimeNs = 0; // guarded by pendingOutputLock
+    private volatile long framesRendered = 0;
+    private volatile long lateFramesDropped = 0;
+
+    // Catch-up: once the decoder is running, a ring backlog beyond either threshold is cut by jumping
+    // to the newest queued IDR or, without one, by skipping the queued non-reference frames.
+    // Reader side, guarded by feedLock.
+    private static final int DEFAULT_CATCH_UP_THRESHOLD_FRAMES = 8;
+    private static final long DEFAULT_CATCH_UP_THRESHOLD_MS = 150;
+    // a backlog without IDR or non-reference frames can't be cut, don't walk the ring for it on every input buffer
+    private static final long CATCH_UP_MIN_INTERVAL_NS = TimeUnit.MILLISECONDS.toNanos(100);
+    private int catchUpThresholdFrames = DEFAULT_CATCH_UP_THRESHOLD_FRAMES;
+    private long catchUpThresholdNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_CATCH_UP_THRESHOLD_MS);
+    private long lastCatchUpAttemptNs = 0;
+    private volatile long catchUpCount = 0;
+    private volatile long catchUpFramesSkipped = 0;
+    private volatile long catchUpLatencyRecoveredMs = 0;
+
+    // packets waiting for the codec at which the stream outpaces it
+    private static final int SATURATED_BACKLOG_FRAMES = 3;
+    // values at the previous sampleDecoderLoad(), guarded by feedLock
+    private long loadSampleFramesReceived = 0;
+    private long loadSampleCatchUps = 0;
+
+    // Input occupancy, sampled by the feeder after every pass: free input buffers left over while no
+    // packet waits means the decoder starves for input, packets left over without a free buffer means
+    // the input starves for decoder buffers. Feeder thread.
+    private volatile long feedPasses = 0;
+    private volatile long decoderStarvedPasses = 0;
+    private volatile long inputStarvedPasses = 0;
+    private volatile long freeInputBuffersTotal = 0;
+    private volatile long staleInputIndexes = 0;
 
     private int calculateOptimalBufferSize(int width, int height) {
         // Base calculation for different resolutions - this is for the ring buffer
@@ -131,6 +226,28 @@ public class H264Renderer {
     }
 
     public H264Renderer(Context context, int width, int height, SurfaceTexture texture, int textureId, LogCallback logCallback) {
+        this(context, width, height, texture, textureId, logCallback, PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED);
+    }
+
+    // ringBufferMode: SINGLE_PRODUCER_SINGLE_CONSUMER is only valid when processDataDirect is always
+    // called from one thread (the USB read loop). Reads are serialized by feedLock.
+    public H264Renderer(Context context, int width, int height, SurfaceTexture texture, int textureId, LogCallback logCallback,
+                        PacketRingByteBuffer.ConcurrencyMode ringBufferMode) {
+        this(context, width, height, texture, textureId, logCallback, ringBufferMode, PacketRingByteBuffer.Backing.HEAP);
+    }
+
+    // ringBufferBacking: DIRECT keeps the 8-64MB ring out of the Java heap, feed it with the ByteBuffer processDataDirect
+    public H264Renderer(Context context, int width, int height, SurfaceTexture texture, int textureId, LogCallback logCallback,
+                        PacketRingByteBuffer.ConcurrencyMode ringBufferMode, PacketRingByteBuffer.Backing ringBufferBacking) {
+        this(context, width, height, texture, textureId, logCallback, ringBufferMode, ringBufferBacking,
+                ringBufferMode == PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED
+                        ? PacketRingByteBuffer.OverflowPolicy.GROW : PacketRingByteBuffer.OverflowPolicy.BLOCK_PRODUCER);
+    }
+
+    // ringOverflowPolicy: anything but GROW bounds the ring, and with it the latency a decoder stall can build up
+    public H264Renderer(Context context, int width, int height, SurfaceTexture texture, int textureId, LogCallback logCallback,
+                        PacketRingByteBuffer.ConcurrencyMode ringBufferMode, PacketRingByteBuffer.Backing ringBufferBacking,
+                        PacketRingByteBuffer.OverflowPolicy ringOverflowPolicy) {
         this.width = width;
         this.height = height;
         this.texture = texture;
@@ -141,8 +258,9 @@ public class H264Renderer {
         // Optimize buffer size for 6GB RAM system and 2400x960@60fps target
         // Calculate optimal buffer: ~2-3 seconds of 4K video = 32MB for safety margin
         int bufferSize = calculateOptimalBufferSize(width, height);
-        ringBuffer = new PacketRingByteBuffer(bufferSize);
-        log("Ring buffer initialized: " + (bufferSize / (1024*1024)) + "MB for " + width + "x" + height);
+        ringBuffer = new PacketRingByteBuffer(bufferSize, ringBufferMode, ringBufferBacking, ringOverflowPolicy);
+        log("Ring buffer initialized: " + (bufferSize / (1024*1024)) + "MB for " + width + "x" + height + ", mode: " + ringBufferMode
+                + ", backing: " + ringBufferBacking + ", overflow: " + ringOverflowPolicy);
 
         // Initialize memory pool after successful codec startup - research shows 30x performance improvement
         initializeBufferPool();
@@ -169,8 +287,19 @@ public class H264Renderer {
 
         log("start - Resolution: " + width + "x" + height + ", Surface: " + (surface != null));
 
+        inputFeeder.start();
+        outputReleaser.start();
+
         try {
             initCodec(width, height, surface);
+
+            synchronized (feedLock) {
+                replayConfigPending = true;
+                replayKeyframePending = true;
+            }
+
+            codecStartTime = System.currentTimeMillis();
+            awaitingFirstFrame = true;
             mCodec.start();
             log("codec started successfully");
         } catch (Exception e) {
@@ -190,23 +319,243 @@ public class H264Renderer {
 
         if (codec != mCodec) return false;
 
-        if (ringBuffer.isEmpty()) return false;
+        if (ringBuffer.isEmpty() && !isStreamReplayPending()) return false;
 
-        synchronized (codecAvailableBufferIndexes) {
-            // Re-check inside the lock to prevent race condition
-            if (codecAvailableBufferIndexes.isEmpty()) return false;
-            
-            int index = codecAvailableBufferIndexes.remove(0);
+        synchronized (feedLock) {
+            if (peekInputIndex() < 0) return false;
+
+            if (isStreamReplayPending() && replayCachedStream()) return true;
+
+            catchUpIfBehind();
+
+            ByteBuffer packet = ringBuffer.acquirePacket();
+            if (packet == null) return false;
+
+            int index = takeInputIndex();
+
+            // the packet is copied straight from the ring into the codec and released right after
+            int size = 0;
+            long presentationTimeUs = TimeUnit.NANOSECONDS.toMicros(ringBuffer.getLeasedPacketArrivalNanos());
+            try {
+                ByteBuffer byteBuffer = mCodec.getInputBuffer(index);
+                if (packet.remaining() > byteBuffer.remaining()) {
+                    log("[Media Codec] packet of " + packet.remaining() + " bytes exceeds input buffer of " + byteBuffer.remaining() + ", dropped");
+                } else {
+                    int start = packet.position();
+                    byteBuffer.put(packet);
+                    size = byteBuffer.position();
 
-            ByteBuffer byteBuffer = mCodec.getInputBuffer(index);
-            byteBuffer.put(ringBuffer.readPacket());
+                    if ((ringBuffer.getLeasedPacketFlags() & NalUnitClassifier.IDR) != 0) {
+                        packet.position(start);
+                        cacheKeyframe(packet);
+                    }
+                }
+            } finally {
+                ringBuffer.releasePacket();
+            }
 
-            mCodec.queueInputBuffer(index, 0, byteBuffer.position(), 0, 0);
+            // an oversized packet still gives the input buffer back to the codec, empty
+            mCodec.queueInputBuffer(index, 0, size, presentationTimeUs, 0);
         }
 
         return true;
     }
 
+    /**
+     * Sets the backlog (queued packets, or age of the oldest queued packet) above which queued frames
+     * are skipped to get back to live. A value <= 0 disables that threshold.
+     */
+    public void setCatchUpThreshold(int frames, long millis) {
+        synchronized (feedLock) {
+            catchUpThresholdFrames = frames;
+            catchUpThresholdNs = TimeUnit.MILLISECONDS.toNanos(millis);
+        }
+    }
+
+    private void catchUpIfBehind() {
+        // never during startup, the decoder needs everything up to its first pictures
+        if (!decoderInitialized) return;
+
+        long now = System.nanoTime();
+        long oldestArrival = ringBuffer.getOldestPacketArrivalNanos();
+        if (oldestArrival < 0) return;
+
+        long backlogNs = now - oldestArrival;
+        int backlogFrames = ringBuffer.availablePacketsToRead();
+        boolean behind = (catchUpThresholdFrames > 0 && backlogFrames > catchUpThresholdFrames)
+                || (catchUpThresholdNs > 0 && backlogNs > catchUpThresholdNs);
+        if (!behind || now - lastCatchUpAttemptNs < CATCH_UP_MIN_INTERVAL_NS) return;
+
+        lastCatchUpAttemptNs = now;
+
+        // a keyframe cuts the whole backlog, skipping non-reference frames at least thins it out
+        boolean toIdr = ringBuffer.hasQueuedIdr();
+        long skipped = toIdr ? ringBuffer.skipToLatestIdr() : ringBuffer.skipQueuedNonReference();
+        if (skipped == 0) return;
+
+        long newOldestArrival = ringBuffer.getOldestPacketArrivalNanos();
+        long recoveredNs = newOldestArrival < 0 ? backlogNs : newOldestArrival - oldestArrival;
+
+        catchUpCount++;
+        catchUpFramesSkipped += skipped;
+        catchUpLatencyRecoveredMs += TimeUnit.NANOSECONDS.toMillis(recoveredNs);
+        log("[CATCH_UP] backlog " + backlogFrames + " packets / " + TimeUnit.NANOSECONDS.toMillis(backlogNs) + "ms, skipped "
+                + skipped + (toIdr ? " to the latest IDR" : " non-reference") + ", recovered " + TimeUnit.NANOSECONDS.toMillis(recoveredNs) + "ms");
+    }
+
+    /**
+     * Decoder load since the previous call, for the frame request ticker: STARVED when no frame arrived
+     * meanwhile and the codec waits for input, SATURATED when packets pile up in front of the codec or
+     * a catch-up had to skip some.
+     */
+    public DecoderLoad sampleDecoderLoad() {
+        synchronized (feedLock) {
+            long received = totalFramesReceived;
+            long catchUps = catchUpCount;
+            boolean arrived = received != loadSampleFramesReceived;
+            boolean caughtUp = catchUps != loadSampleCatchUps;
+            loadSampleFramesReceived = received;
+            loadSampleCatchUps = catchUps;
+
+            if (caughtUp || ringBuffer.availablePacketsToRead() >= SATURATED_BACKLOG_FRAMES) return DecoderLoad.SATURATED;
+            if (!arrived && !availableInputIndexes.isEmpty()) return DecoderLoad.STARVED;
+            return DecoderLoad.BALANCED;
+        }
+    }
+
+    public String getCatchUpStats() {
+        return "catch-ups: " + catchUpCount + ", skipped: " + catchUpFramesSkipped + ", recovered: " + catchUpLatencyRecoveredMs + "ms";
+    }
+
+    private boolean isStreamReplayPending() {
+        return replayConfigPending || replayKeyframePending;
+    }
+
+    // Queues the cached SPS/PPS as codec config, then the cached keyframe, one per input buffer.
+    // The keyframe is left out when the ring already holds a newer one.
+    private boolean replayCachedStream() {
+        if (replayConfigPending) {
+            replayConfigPending = false;
+
+            byte[] config = ringBuffer.getCodecConfig();
+            if (config == null) {
+                config = inheritedCodecConfig;
+            }
+
+            if (config != null) {
+                int index = takeInputIndex();
+                ByteBuffer byteBuffer = mCodec.getInputBuffer(index);
+                byteBuffer.put(config);
+                mCodec.queueInputBuffer(index, 0, config.length, replayPresentationTimeUs(), MediaCodec.BUFFER_FLAG_CODEC_CONFIG);
+                streamReplayCount++;
+                log("[REPLAY] queued cached SPS/PPS, " + config.length + " bytes");
+                return true;
+            }
+        }
+
+        if (replayKeyframePending) {
+            replayKeyframePending = false;
+
+            if (cachedKeyframe != null && cachedKeyframe.limit() > 0 && !ringBuffer.hasQueuedIdr()) {
+                int index = peekInputIndex();
+                ByteBuffer byteBuffer = mCodec.getInputBuffer(index);
+                if (cachedKeyframe.limit() > byteBuffer.remaining()) {
+                    return false;
+                }
+                takeInputIndex();
+
+                byteBuffer.put(cachedKeyframe);
+                cachedKeyframe.rewind();
+                mCodec.queueInputBuffer(index, 0, cachedKeyframe.limit(), replayPresentationTimeUs(), 0);
+                log("[REPLAY] queued cached keyframe, " + cachedKeyframe.limit() + " bytes");
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // replayed data arrives now, as far as the output pacing is concerned
+    private static long replayPresentationTimeUs() {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime());
+    }
+
+    private void cacheKeyframe(ByteBuffer packet) {
+        int size = packet.remaining();
+
+        if (size > MAX_CACHED_KEYFRAME_SIZE) {
+            // an older keyframe doesn't match the stream anymore
+            if (cachedKeyframe != null) {
+                cachedKeyframe.limit(0);
+            }
+            return;
+        }
+
+        if (cachedKeyframe == null || cachedKeyframe.capacity() < size) {
+            cachedKeyframe = ByteBuffer.allocateDirect(Math.min(MAX_CACHED_KEYFRAME_SIZE, Math.max(size, calculateOptimalFrameBufferSize(width, height))));
+        }
+
+        cachedKeyframe.clear();
+        cachedKeyframe.put(packet);
+        cachedKeyframe.flip();
+    }
+
+    /**
+     * Takes over the cached SPS/PPS and keyframe of the renderer this one replaces (texture recreated),
+     * so the first frame doesn't have to wait for the phone. Call before start().
+     */
+    public void inheritStreamState(H264Renderer previous) {
+        if (previous == null || previous == this) return;
+
+        if (previous.width != width || previous.height != height) {
+            log("[REPLAY] not inheriting stream state of " + previous.width + "x" + previous.height + " renderer");
+            return;
+        }
+
+        byte[] config = previous.ringBuffer.getCodecConfig();
+        ByteBuffer keyframe = null;
+
+        synchronized (previous.feedLock) {
+            if (config == null) {
+                config = previous.inheritedCodecConfig;
+            }
+            if (previous.cachedKeyframe != null && previous.cachedKeyframe.limit() > 0) {
+                keyframe = ByteBuffer.allocateDirect(previous.cachedKeyframe.limit());
+                keyframe.put(previous.cachedKeyframe);
+                keyframe.flip();
+                previous.cachedKeyframe.rewind();
+            }
+        }
+
+        synchronized (feedLock) {
+            inheritedCodecConfig = config;
+            if (keyframe != null) {
+                cachedKeyframe = keyframe;
+            }
+        }
+
+        log("[REPLAY] inherited SPS/PPS: " + (config != null) + ", keyframe: " + (keyframe != null ? keyframe.limit() + " bytes" : "none"));
+    }
+
+    // feeder thread under feedLock, the only consumer of availableInputIndexes: the next input index
+    // of the running codec or -1; stale ones from before a flush are dropped
+    private int peekInputIndex() {
+        int tagged;
+        while ((tagged = availableInputIndexes.peek()) != IntRingQueue.EMPTY) {
+            if ((tagged >>> INPUT_INDEX_BITS) == (codecGeneration & INPUT_GENERATION_MASK)) {
+                return tagged & INPUT_INDEX_MASK;
+            }
+            availableInputIndexes.poll();
+            staleInputIndexes++;
+        }
+        return -1;
+    }
+
+    // feeder thread under feedLock, after peekInputIndex() found one
+    private int takeInputIndex() {
+        return availableInputIndexes.poll() & INPUT_INDEX_MASK;
+    }
+
     private void fillAllAvailableCodecBuffers(MediaCodec codec) {
         boolean filled = true;
 
@@ -215,86 +564,234 @@ public class H264Renderer {
         }
     }
 
+    // a new packet or a new input buffer, the feeder thread pairs them up
     private void feedCodec() {
-        // Optimize for Intel Atom x7-A3960 quad-core  
-        // Use dedicated high-priority thread for codec feeding to reduce latency
-        executors.mediaCodec1().execute(() -> {
-            // Thread priority already set by OptimizedMediaCodecExecutor
-            // No need to set it again here
-            
-            try {
-                fillAllAvailableCodecBuffers(mCodec);
-                
-                // Buffer health monitoring for automotive stability
-                if (ringBuffer != null) {
-                    int packetCount = ringBuffer.availablePacketsToRead();
-                    if (packetCount > 20) { // Warn if buffer is getting full
-                        log("[BUFFER_WARNING] High buffer usage: " + packetCount + " packets");
-                    }
+        inputFeeder.signal();
+    }
+
+    // feeder thread, the only one that fills input buffers
+    private void feedAvailableInput() {
+        try {
+            fillAllAvailableCodecBuffers(mCodec);
+            sampleInputOccupancy();
+
+            // Buffer health monitoring for automotive stability
+            if (ringBuffer != null) {
+                int packetCount = ringBuffer.availablePacketsToRead();
+                if (packetCount > 20) { // Warn if buffer is getting full
+                    log("[BUFFER_WARNING] High buffer usage: " + packetCount + " packets");
                 }
-            } catch (Exception e) {
-                log("[Media Codec] fill input buffer error:" + e.toString());
-                // Let MediaCodec.Callback.onError() handle recovery properly
             }
-        });
+        } catch (Exception e) {
+            log("[Media Codec] fill input buffer error:" + e.toString());
+            // Let MediaCodec.Callback.onError() handle recovery properly
+        }
+    }
+
+    private void sampleInputOccupancy() {
+        boolean freeBuffers;
+        int freeBufferCount;
+        // peekInputIndex() drops stale indexes, it consumes from the queue like the fill does
+        synchronized (feedLock) {
+            freeBuffers = peekInputIndex() >= 0;
+            freeBufferCount = availableInputIndexes.size();
+        }
+        boolean waitingPackets = !ringBuffer.isEmpty();
+
+        feedPasses++;
+        freeInputBuffersTotal += freeBufferCount;
+        if (freeBuffers && !waitingPackets) {
+            decoderStarvedPasses++;
+        } else if (!freeBuffers && waitingPackets) {
+            inputStarvedPasses++;
+        }
+    }
+
+    public String getInputOccupancyStats() {
+        long passes = feedPasses;
+        return String.format("passes: %d, decoder starved: %.1f%%, input starved: %.1f%%, free buffers: %.1f avg %d max, stale: %d, lost: %d",
+                passes, passes > 0 ? decoderStarvedPasses * 100.0 / passes : 0.0, passes > 0 ? inputStarvedPasses * 100.0 / passes : 0.0,
+                passes > 0 ? (double) freeInputBuffersTotal / passes : 0.0, availableInputIndexes.getMaxSize(),
+                staleInputIndexes, availableInputIndexes.getRejectedCount());
     }
 
     public void stop() {
+        stop(true);
+    }
+
+    // reuseCodec: hand a cleanly stopped codec back to the factory for the next start,
+    // false when it failed and must not be seen again
+    private void stop(boolean reuseCodec) {
         if (!running) return;
 
         running = false;
 
+        // wait for passes in progress, neither thread may touch the codec once it is stopped or recycled
+        inputFeeder.stop();
+        outputReleaser.stop();
+
+        MediaCodec codec = mCodec;
+        mCodec = null;
+        if (codec == null) return;
+
         try {
-            if (mCodec != null) {
-                mCodec.stop();
-                mCodec.release();
-                mCodec = null;
-            }
+            codec.stop();
         } catch (Exception e) {
             log("STOP: MediaCodec cleanup failed - " + e.toString());
-            mCodec = null; // Force null to prevent further issues
+            reuseCodec = false;
+        }
+
+        try {
+            if (reuseCodec) {
+                H264DecoderFactory.getInstance().recycle(codec);
+            } else {
+                codec.release();
+            }
+        } catch (Exception e) {
+            log("STOP: MediaCodec release failed - " + e.toString());
         }
     }
 
 
     public void reset() {
+        recover(RecoveryTier.FLUSH);
+    }
+
+    /**
+     * Brings the decoder back starting at the given tier and escalating when a tier fails.
+     * Must be called on the main thread, like start() and stop().
+     */
+    public void recover(RecoveryTier firstTier) {
         codecResetCount++;
-        log("reset codec - Reset count: " + codecResetCount + ", Frames decoded: " + totalFramesDecoded);
-        
-        // Simple reset: stop, recreate, and start fresh
-        stop();
-        start();
+        log("reset codec - Reset count: " + codecResetCount + ", Frames decoded: " + totalFramesDecoded + ", first tier: " + firstTier);
+
+        long startTime = System.currentTimeMillis();
+        RecoveryTier tier = firstTier;
+
+        // without a running codec there is nothing to flush or reconfigure
+        if (mCodec == null || !running) {
+            tier = RecoveryTier.RECREATE;
+        }
+
+        while (true) {
+            try {
+                if (tier == RecoveryTier.FLUSH) {
+                    flushCodec();
+                } else if (tier == RecoveryTier.RECONFIGURE) {
+                    reconfigureCodec();
+                } else {
+                    // Simple reset: stop, recreate, and start fresh
+                    stop(false);
+                    start();
+                }
+                break;
+            } catch (Exception e) {
+                log("reset - " + tier + " failed: " + e.toString());
+                recoveryEscalations++;
+                tier = RecoveryTier.values()[tier.ordinal() + 1];
+            }
+        }
+
+        recoveriesByTier[tier.ordinal()]++;
+        lastRecoveryDurationMs = System.currentTimeMillis() - startTime;
+        log("reset - recovered by " + tier + " in " + lastRecoveryDurationMs + "ms, " + getRecoveryStats());
+
+        // The decoder lost its reference frames, start it from the newest keyframe
+        synchronized (feedLock) {
+            long skipped = ringBuffer.skipToLatestIdr();
+            if (skipped > 0) {
+                log("reset - skipped " + skipped + " queued packets to the latest IDR");
+            }
+        }
+    }
+
+    public String getRecoveryStats() {
+        return "flush: " + recoveriesByTier[RecoveryTier.FLUSH.ordinal()]
+                + ", reconfigure: " + recoveriesByTier[RecoveryTier.RECONFIGURE.ordinal()]
+                + ", recreate: " + recoveriesByTier[RecoveryTier.RECREATE.ordinal()]
+                + ", escalations: " + recoveryEscalations
+                + ", last: " + lastRecoveryDurationMs + "ms";
+    }
+
+    // invalidates every input index held for the codec and arms the SPS/PPS + keyframe replay
+    private void invalidateCodecBuffers() {
+        synchronized (feedLock) {
+            codecGeneration++;
+            replayConfigPending = true;
+            replayKeyframePending = true;
+        }
+    }
+
+    private void flushCodec() {
+        // The feeder queues input under feedLock: with the generation bumped before the flush it can't
+        // take an index from before it afterwards, and an index a callback tags while the flush runs
+        // goes stale with the second bump.
+        synchronized (feedLock) {
+            codecGeneration++;
+            // in async mode flush() leaves the codec idle until start() is called again
+            mCodec.flush();
+            invalidateCodecBuffers();
+        }
+
+        codecStartTime = System.currentTimeMillis();
+        awaitingFirstFrame = true;
+        mCodec.start();
+    }
+
+    private void reconfigureCodec() {
+        // like flushCodec(), but the feeder stays out until the codec runs again: between stop() and
+        // start() there is no input buffer it could queue to
+        synchronized (feedLock) {
+            codecGeneration++;
+            mCodec.stop();
+            invalidateCodecBuffers();
+
+            mCodec.setCallback(codecCallback);
+            mCodec.configure(mediaFormat, surface, null, 0);
+
+            codecStartTime = System.currentTimeMillis();
+            awaitingFirstFrame = true;
+            mCodec.start();
+        }
+    }
+
+    // codec errors arrive on the codec's callback thread, recovery runs on the main thread
+    private void recoverFromCodecError(MediaCodec codec, RecoveryTier tier) {
+        new android.os.Handler(android.os.Looper.getMainLooper()).post(() -> {
+            if (!running || codec != mCodec) return;
+
+            if (tier == RecoveryTier.RECREATE) {
+                long now = System.currentTimeMillis();
+                if (now - lastAutoRecreateTime < AUTO_RECREATE_MIN_INTERVAL_MS) {
+                    log("[Media Codec] Fatal error again within " + AUTO_RECREATE_MIN_INTERVAL_MS + "ms - not recreating to avoid a crash loop");
+                    return;
+                }
+                lastAutoRecreateTime = now;
+            }
+
+            recover(tier);
+        });
     }
 
 
     private void initCodec(int width, int height, Surface surface) throws Exception {
         log("init media codec - Resolution: " + width + "x" + height);
 
-        // Simplified codec selection - avoid startup delays during CarPlay handshake
-        MediaCodec codec = null;
-        String codecName = null;
-        
-        try {
-            // Try Intel Quick Sync decoder first (known to work)
-            codec = MediaCodec.createByCodecName("OMX.Intel.VideoDecoder.AVC");
-            codecName = "OMX.Intel.VideoDecoder.AVC (Intel Quick Sync)";
-            log("Using Intel hardware decoder: " + codecName);
-        } catch (Exception e) {
-            log("Intel decoder not available, trying generic hardware decoder");
-            try {
-                // Fallback to generic hardware decoder (simple and reliable)
-                codec = MediaCodec.createDecoderByType("video/avc");
-                codecName = codec.getName();
-                log("Using generic decoder: " + codecName);
-            } catch (Exception e2) {
-                throw new Exception("No H.264 decoder available", e2);
-            }
+        // Decoder name and capabilities are resolved once per process (Intel Quick Sync first),
+        // a decoder stopped by a previous renderer is reused - avoid startup delays during CarPlay handshake
+        H264DecoderFactory decoderFactory = H264DecoderFactory.getInstance();
+        MediaCodec codec = decoderFactory.obtain();
+        String codecName = codec.getName();
+
+        if (!decoderFactory.getDecoderInfo().isSizeSupported(width, height)) {
+            log("WARNING: " + width + "x" + height + " is outside the capabilities of " + decoderFactory.getDecoderInfo());
         }
         
         mCodec = codec;
-        log("codec created: " + codecName);
+        log("codec created: " + codecName + ", " + decoderFactory.getStats());
 
         final MediaFormat mediaformat = MediaFormat.createVideoFormat("video/avc", width, height);
+        mediaFormat = mediaformat;
         
         // Intel HD Graphics 505 optimization for 2400x960@60fps
         // Optimize for low latency decoding (Android 11+)
@@ -330,27 +827,41 @@ public class H264Renderer {
         log("configure media codec");
         mCodec.configure(mediaformat, surface, null, 0);
 
-        codecAvailableBufferIndexes.clear();
+        synchronized (feedLock) {
+            codecGeneration++;
+        }
 
         log("media codec in async mode");
         mCodec.setCallback(codecCallback);
     }
 
     public void processDataDirect(int length, int skipBytes, PacketRingByteBuffer.DirectWriteCallback callback) {
+        countReceivedFrame(length);
+
+        ringBuffer.directWriteToBuffer(length, skipBytes, callback);
+        feedCodec();
+    }
+
+    // callback gets a view of the ring positioned at the packet, no staging copy for DIRECT backing
+    public void processDataDirect(int length, int skipBytes, PacketRingByteBuffer.ByteBufferWriteCallback callback) {
+        countReceivedFrame(length);
+
+        ringBuffer.directWriteToBuffer(length, skipBytes, callback);
+        feedCodec();
+    }
+
+    private void countReceivedFrame(int length) {
         totalFramesReceived++;
         totalBytesProcessed += length;
         
         // CRITICAL FIX: Never drop frames during decoder initialization
         // Research shows SPS/PPS frames are essential for decoder startup
-        // Frame skipping should only happen AFTER successful streaming has begun
+        // Frame skipping only happens AFTER successful streaming has begun, see catchUpIfBehind()
         
         // Log performance stats every 60 frames (~1 second at 60fps)
         if (totalFramesReceived % 60 == 0) {
             logPerformanceStats();
         }
-        
-        ringBuffer.directWriteToBuffer(length, skipBytes, callback);
-        feedCodec();
     }
     
     
@@ -410,8 +921,18 @@ public class H264Renderer {
                 if (codec != mCodec) return;
 
 //                log("[Media Codec] onInputBufferAvailable index:" + index);
-                synchronized (codecAvailableBufferIndexes) {
-                    codecAvailableBufferIndexes.add(index);
+                // tagged before it goes in, a flush from now on makes it stale
+                int tagged = ((codecGeneration & INPUT_GENERATION_MASK) << INPUT_INDEX_BITS) | index;
+                if (!availableInputIndexes.offer(tagged)) {
+                    log("[Media Codec] input index queue full, index " + index + " lost");
+                    return;
+                }
+
+                // Packets may be waiting for an input buffer, don't leave them until the next USB packet.
+                // With a fixed-size ring buffer the writer may be waiting for exactly this.
+                // Right after start the cached stream state is waiting too.
+                if (!ringBuffer.isEmpty() || isStreamReplayPending()) {
+                    feedCodec();
                 }
             }
 
@@ -422,6 +943,11 @@ public class H264Renderer {
                 if (info.size > 0) {
                     totalFramesDecoded++;
                     consecutiveOutputFrames++;
+
+                    if (awaitingFirstFrame) {
+                        awaitingFirstFrame = false;
+                        log("first frame " + (System.currentTimeMillis() - codecStartTime) + "ms after codec start, stream replays: " + streamReplayCount);
+                    }
                     
                     // Mark decoder as initialized after first few successful outputs
                     if (consecutiveOutputFrames >= 3) {
@@ -429,13 +955,33 @@ public class H264Renderer {
                     }
                 } else {
                     totalFramesDropped++;
+                    releaseOutputBuffer(codec, codecGeneration, index, -1);
+                    return;
+                }
+
+                long latencyNs = System.nanoTime() - TimeUnit.MICROSECONDS.toNanos(info.presentationTimeUs);
+                smoothedDecodeLatencyNs += (latencyNs - smoothedDecodeLatencyNs) / 16;
+
+                int droppedIndex;
+                int droppedGeneration;
+                MediaCodec droppedCodec;
+                synchronized (pendingOutputLock) {
+                    droppedIndex = pendingOutputIndex;
+                    droppedGeneration = pendingOutputGeneration;
+                    droppedCodec = pendingOutputCodec;
+
+                    pendingOutputIndex = index;
+                    pendingOutputPtsUs = info.presentationTimeUs;
+                    pendingOutputGeneration = codecGeneration;
+                    pendingOutputCodec = codec;
                 }
 
-                executors.mediaCodec2().execute(() -> {
-                    boolean doRender = (info.size != 0);
-                    mCodec.releaseOutputBuffer(index, doRender);
-                });
+                // the release thread fell behind, the older frame would only be shown late
+                if (droppedIndex >= 0 && releaseOutputBuffer(droppedCodec, droppedGeneration, droppedIndex, -1)) {
+                    lateFramesDropped++;
+                }
 
+                outputReleaser.signal();
             }
 
             @Override
@@ -444,12 +990,14 @@ public class H264Renderer {
 
                 log("[Media Codec] onError " + e.toString() + ", Recoverable: " + e.isRecoverable() + ", Transient: " + e.isTransient());
                 
-                // Only reset on critical errors - let transient/recoverable errors pass
-                if (!e.isTransient() && !e.isRecoverable()) {
-                    log("[Media Codec] Fatal error - will reset on next start attempt");
-                    // Don't automatically reset - let user restart manually to avoid crash loops
+                // Cheapest tier first: transient errors only need the in-flight buffers dropped,
+                // recoverable ones a flush or at worst a reconfigure, fatal ones a new codec
+                if (e.isTransient() || e.isRecoverable()) {
+                    log("[Media Codec] Transient/recoverable error - flushing");
+                    recoverFromCodecError(codec, RecoveryTier.FLUSH);
                 } else {
-                    log("[Media Codec] Transient/recoverable error - continuing operation");
+                    log("[Media Codec] Fatal error - recreating codec");
+                    recoverFromCodecError(codec, RecoveryTier.RECREATE);
                 }
             }
 
@@ -467,6 +1015,59 @@ public class H264Renderer {
         };
     }
     
+    // takes the waiting frame, if a newer release didn't take it already, and schedules its display
+    private void releasePendingOutput() {
+        int index;
+        int generation;
+        MediaCodec codec;
+        long renderTimeNs;
+        synchronized (pendingOutputLock) {
+            if (pendingOutputIndex < 0) return;
+
+            index = pendingOutputIndex;
+            generation = pendingOutputGeneration;
+            codec = pendingOutputCodec;
+            pendingOutputIndex = -1;
+            pendingOutputCodec = null;
+
+            long now = System.nanoTime();
+            renderTimeNs = TimeUnit.MICROSECONDS.toNanos(pendingOutputPtsUs) + smoothedDecodeLatencyNs;
+            // a late frame goes out on the next vsync, an early one is never held back for long,
+            // and display order must follow decode order
+            renderTimeNs = Math.max(renderTimeNs, now);
+            renderTimeNs = Math.min(renderTimeNs, now + MAX_RENDER_AHEAD_NS);
+            renderTimeNs = Math.max(renderTimeNs, lastRenderTimeNs);
+            lastRenderTimeNs = renderTimeNs;
+        }
+
+        if (releaseOutputBuffer(codec, generation, index, renderTimeNs)) {
+            framesRendered++;
+        }
+    }
+
+    // renderTimeNs < 0 releases without rendering
+    private boolean releaseOutputBuffer(MediaCodec codec, int generation, int index, long renderTimeNs) {
+        // flushed or reconfigured in between, the buffer already went back to the codec
+        if (generation != codecGeneration || codec != mCodec) return false;
+
+        try {
+            if (renderTimeNs < 0) {
+                codec.releaseOutputBuffer(index, false);
+            } else {
+                codec.releaseOutputBuffer(index, renderTimeNs);
+            }
+            return true;
+        } catch (IllegalStateException e) {
+            log("[Media Codec] release output buffer failed: " + e.toString());
+            return false;
+        }
+    }
+
+    public String getPacingStats() {
+        return "rendered: " + framesRendered + ", late dropped: " + lateFramesDropped
+                + ", decode latency: " + TimeUnit.NANOSECONDS.toMillis(smoothedDecodeLatencyNs) + "ms";
+    }
+
     private void logPerformanceStats() {
         long currentTime = System.currentTimeMillis();
         long timeDiff = currentTime - lastStatsTime;
@@ -480,7 +1081,36 @@ public class H264Renderer {
             // Enhanced logging for Intel GPU performance analysis
             String perfMsg = String.format("[PERF] FPS: %.1f/60, Frames: R:%d/D:%d/Drop:%d, DropRate: %.1f%%, AvgSize: %.1fKB, Throughput: %.1fMbps, Resets: %d", 
                 fps, totalFramesReceived, totalFramesDecoded, totalFramesDropped, dropRate, avgFrameSize, throughputMbps, codecResetCount);
+
+            // Packets the fixed-size ring buffer had to discard because the decoder did not keep up
+            long ringDropped = ringBuffer.getDroppedPacketCount();
+            if (ringDropped > 0) {
+                perfMsg += " [RING_DROPPED: " + ringDropped
+                        + ", blocked: " + ringBuffer.getProducerBlockCount() + "/" + ringBuffer.getProducerBlockTimeoutCount()
+                        + ", nonRef: " + ringBuffer.getDroppedNonReferenceCount() + "/" + ringBuffer.getSkippedNonReferenceCount()
+                        + ", untilIdr: " + ringBuffer.getDroppedAwaitingIdrCount() + ", resyncs: " + ringBuffer.getIdrResyncCount()
+                        + ", backlog: " + ringBuffer.getBacklogDiscardCount() + "/" + ringBuffer.getDiscardedPacketCount() + "]";
+            }
+            if (ringBuffer.isAwaitingIdr()) {
+                perfMsg += " [RING_AWAITING_IDR]";
+            }
+            long pendingReferences = ringBuffer.getPendingReferenceFrameCount();
+            if (pendingReferences > 10) {
+                perfMsg += " [RING_PENDING_REF: " + pendingReferences + (ringBuffer.hasQueuedIdr() ? ", IDR queued" : "") + "]";
+            }
             
+            if (codecResetCount > 0) {
+                perfMsg += " [RECOVERY " + getRecoveryStats() + "]";
+            }
+
+            perfMsg += " [PACING " + getPacingStats() + "]";
+            perfMsg += " [FEED " + inputFeeder.getStats() + ", release " + outputReleaser.getStats() + "]";
+            perfMsg += " [INPUT " + getInputOccupancyStats() + "]";
+
+            if (catchUpCount > 0) {
+                perfMsg += " [CATCH_UP " + getCatchUpStats() + "]";
+            }
+
             // Add Intel GPU specific metrics if available
             if (mCodec != null && mCodec.getName().contains("Intel")) {
                 perfMsg += " [Intel Quick Sync Active]";
@@ -0,0 +1,100 @@
+package ru.bukharskii.carlink;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded FIFO of non-negative ints for exactly one producer and one consumer thread, without
+// locks or boxing: each side only advances its own counter, published with a release store.
+// Built for MediaCodec input buffer indexes, the codec callback thread offers, the feeder polls.
+public class IntRingQueue {
+    public static final int EMPTY = -1;
+
+    private final int[] slots;
+    private final int mask;
+
+    // total offered / polled, the slot is the counter modulo capacity
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong head = new AtomicLong(0);
+
+    // producer thread
+    private volatile int maxSize = 0;
+    private volatile long rejected = 0;
+
+    public IntRingQueue(int minCapacity) {
+        if (minCapacity < 1 || minCapacity > 1 << 30) {
+            throw new IllegalArgumentException("minCapacity: " + minCapacity);
+        }
+
+        int capacity = Integer.highestOneBit(minCapacity);
+        if (capacity < minCapacity) capacity <<= 1;
+
+        slots = new int[capacity];
+        mask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Producer thread. False when the queue is full, the value is not queued.
+     */
+    public boolean offer(int value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("value: " + value);
+        }
+
+        long t = tail.get();
+        int size = (int) (t - head.get());
+        if (size == slots.length) {
+            rejected++;
+            return false;
+        }
+
+        slots[(int) t & mask] = value;
+        tail.lazySet(t + 1);
+
+        if (size + 1 > maxSize) {
+            maxSize = size + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Consumer thread, the oldest value without taking it, or EMPTY.
+     */
+    public int peek() {
+        long h = head.get();
+        if (h == tail.get()) return EMPTY;
+        return slots[(int) h & mask];
+    }
+
+    /**
+     * Consumer thread, takes the oldest value, or returns EMPTY.
+     */
+    public int poll() {
+        long h = head.get();
+        if (h == tail.get()) return EMPTY;
+
+        int value = slots[(int) h & mask];
+        head.lazySet(h + 1);
+        return value;
+    }
+
+    // any thread, a snapshot that may be stale by the time it returns
+    public int size() {
+        long h = head.get();
+        return (int) (tail.get() - h);
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getRejectedCount() {
+        return rejected;
+    }
+}
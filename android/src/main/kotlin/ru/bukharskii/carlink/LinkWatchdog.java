@@ -0,0 +1,226 @@
+package ru.bukharskii.carlink;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Keeps the dongle session alive and watches the link from its own thread, independent of the
+// Dart event loop: a pre-built HeartBeat goes out every heartbeatIntervalMs through the write
+// scheduler, and the gap since the read loop's last inbound message is checked every
+// CHECK_INTERVAL_MS. Once video streams, a gap over stallTimeoutMs is a stalled link and
+// StallListener gets called, long before the read's own timeout would fire. CarPlay only sends
+// video when the screen changes, frame requests are what keeps it coming: while they run the
+// timeout is at least FRAME_REQUESTS_PER_STALL intervals, and Unplugged or stopped frame requests
+// disarm the check until video comes back.
+// The dongle doesn't answer heartbeats, the link round trip is taken as the heartbeat's
+// submit to USB completion time.
+public class LinkWatchdog {
+    private static final String LOG_TAG = "CARLINK";
+
+    public static final int DEFAULT_HEARTBEAT_INTERVAL_MS = 2000;
+    public static final int DEFAULT_STALL_TIMEOUT_MS = 15000;
+    static final long CHECK_INTERVAL_MS = 250;
+    static final int FRAME_REQUESTS_PER_STALL = 3;
+
+    private static final int UNPLUGGED_TYPE = 4;
+    private static final int VIDEO_DATA_TYPE = 6;
+
+    public interface StallListener {
+        // watchdog thread, once per stall
+        void onStall(long gapMs);
+    }
+
+    private static final byte[] HEARTBEAT;
+
+    static {
+        int heartbeatType = 0xaa;
+        HEARTBEAT = ByteBuffer.allocate(CarLinkMessageHeader.MESSAGE_LENGTH).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(0x55aa55aa)
+                .putInt(0)
+                .putInt(heartbeatType)
+                .putInt(~heartbeatType)
+                .array();
+    }
+
+    private final UsbWriteScheduler writeScheduler;
+    private final UsbWriteScheduler.Transport transport;
+    private final int timeoutMs;
+    private final long heartbeatIntervalMs;
+    private final long stallTimeoutNs;
+    private final StallListener stallListener;
+    private final LogCallback logCallback;
+
+    private ScheduledExecutorService timer;
+
+    // read loop thread
+    private volatile long lastInboundNanos = System.nanoTime();
+    private volatile boolean armed = false;
+    private volatile long inboundMessages = 0;
+
+    // platform thread, 0 while no frame requests run
+    private volatile long frameRequestIntervalNs = 0;
+
+    // watchdog thread
+    private boolean stalled = false;
+    private volatile long maxGapNs = 0;
+    private volatile long stalls = 0;
+
+    // usbOut thread
+    private volatile boolean heartbeatPending = false;
+    private volatile long heartbeatsSent = 0;
+    private volatile long heartbeatsFailed = 0;
+    private volatile long heartbeatsSkipped = 0;
+    private volatile long lastRttNs = 0;
+    private volatile long rttTotalNs = 0;
+    private volatile long rttMaxNs = 0;
+
+    public LinkWatchdog(UsbWriteScheduler writeScheduler, UsbWriteScheduler.Transport transport, int timeoutMs,
+                        int heartbeatIntervalMs, int stallTimeoutMs, StallListener stallListener, LogCallback logCallback) {
+        this.writeScheduler = writeScheduler;
+        this.transport = transport;
+        this.timeoutMs = timeoutMs;
+        this.heartbeatIntervalMs = Math.max(1, heartbeatIntervalMs);
+        // <= 0 sends heartbeats only
+        this.stallTimeoutNs = TimeUnit.MILLISECONDS.toNanos(stallTimeoutMs);
+        this.stallListener = stallListener;
+        this.logCallback = logCallback;
+    }
+
+    private void log(String message) {
+        Log.d(LOG_TAG, "[LINK] " + message);
+        if (logCallback != null) {
+            logCallback.log("[LINK] " + message);
+        }
+    }
+
+    public synchronized void start() {
+        if (timer != null) return;
+
+        timer = new ScheduledThreadPoolExecutor(1,
+                AppExecutors.namedThreadFactory("Carlink-LinkWatchdog", android.os.Process.THREAD_PRIORITY_DISPLAY));
+        timer.scheduleAtFixedRate(this::sendHeartbeat, 0, heartbeatIntervalMs, TimeUnit.MILLISECONDS);
+        if (stallTimeoutNs > 0) {
+            timer.scheduleAtFixedRate(this::check, CHECK_INTERVAL_MS, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+        }
+        log("heartbeat every " + heartbeatIntervalMs + "ms, stall after " + TimeUnit.NANOSECONDS.toMillis(stallTimeoutNs) + "ms");
+    }
+
+    public synchronized void stop() {
+        if (timer == null) return;
+
+        timer.shutdownNow();
+        timer = null;
+        log("stopped, " + getStats());
+    }
+
+    /**
+     * Read loop, for every message header; the watchdog arms with the first video frame,
+     * before that the dongle may legitimately stay quiet, and disarms when the phone is unplugged.
+     */
+    public void onInbound(int type) {
+        lastInboundNanos = System.nanoTime();
+        inboundMessages++;
+        if (type == VIDEO_DATA_TYPE && !armed) {
+            armed = true;
+        } else if (type == UNPLUGGED_TYPE) {
+            armed = false;
+        }
+    }
+
+    /**
+     * Frame requests started (intervalMs) or stopped (0). Without them a static screen sends
+     * nothing, the watchdog disarms until the next video frame.
+     */
+    public void setFrameRequestIntervalMs(int intervalMs) {
+        frameRequestIntervalNs = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalMs));
+        if (intervalMs <= 0) {
+            armed = false;
+        }
+    }
+
+    private long effectiveStallTimeoutNs() {
+        return Math.max(stallTimeoutNs, FRAME_REQUESTS_PER_STALL * frameRequestIntervalNs);
+    }
+
+    // watchdog thread
+    private void sendHeartbeat() {
+        if (heartbeatPending) {
+            heartbeatsSkipped++;
+            return;
+        }
+
+        heartbeatPending = true;
+        long submittedNanos = System.nanoTime();
+        writeScheduler.submit(UsbWriteScheduler.Priority.CONTROL, transport, HEARTBEAT, 0, HEARTBEAT.length, timeoutMs, actualLength -> {
+            if (actualLength < 0) {
+                heartbeatsFailed++;
+            } else {
+                long rttNs = System.nanoTime() - submittedNanos;
+                heartbeatsSent++;
+                lastRttNs = rttNs;
+                rttTotalNs += rttNs;
+                rttMaxNs = Math.max(rttMaxNs, rttNs);
+            }
+            heartbeatPending = false;
+        });
+    }
+
+    // watchdog thread
+    private void check() {
+        check(System.nanoTime());
+    }
+
+    void check(long nowNanos) {
+        if (!armed) {
+            stalled = false;
+            return;
+        }
+
+        long gapNs = nowNanos - lastInboundNanos;
+        maxGapNs = Math.max(maxGapNs, gapNs);
+
+        if (gapNs <= effectiveStallTimeoutNs()) {
+            stalled = false;
+            return;
+        }
+
+        if (stalled) return;
+        stalled = true;
+        stalls++;
+
+        long gapMs = TimeUnit.NANOSECONDS.toMillis(gapNs);
+        log("read loop stalled, nothing received for " + gapMs + "ms");
+        if (stallListener != null) {
+            stallListener.onStall(gapMs);
+        }
+    }
+
+    public Map<String, Object> getStatsMap() {
+        long sent = heartbeatsSent;
+        Map<String, Object> stats = new HashMap<>();
+        stats.put("heartbeatsSent", sent);
+        stats.put("heartbeatsFailed", heartbeatsFailed);
+        stats.put("heartbeatsSkipped", heartbeatsSkipped);
+        stats.put("rttLastMs", lastRttNs / 1e6);
+        stats.put("rttAvgMs", sent > 0 ? rttTotalNs / 1e6 / sent : 0.0);
+        stats.put("rttMaxMs", rttMaxNs / 1e6);
+        stats.put("inboundMessages", inboundMessages);
+        stats.put("inboundGapMs", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastInboundNanos));
+        stats.put("inboundGapMaxMs", TimeUnit.NANOSECONDS.toMillis(maxGapNs));
+        stats.put("stalls", stalls);
+        return stats;
+    }
+
+    public String getStats() {
+        long sent = heartbeatsSent;
+        return String.format("heartbeats: %d, failed: %d, skipped: %d, rtt: %.1fms avg, %.1fms max, inbound: %d, max gap: %dms, stalls: %d",
+                sent, heartbeatsFailed, heartbeatsSkipped, sent > 0 ? rttTotalNs / 1e6 / sent : 0.0, rttMaxNs / 1e6,
+                inboundMessages, TimeUnit.NANOSECONDS.toMillis(maxGapNs), stalls);
+    }
+}
@@ -0,0 +1,125 @@
+package ru.bukharskii.carlink;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+// Collects framed reading loop messages ([int32 type][int32 length][body]) into one buffer per
+// main thread task, so a burst of audio chunks, media metadata and commands costs one task and
+// one channel crossing instead of one each. A batch is closed at maxBatchBytes; the flush runs
+// maxBatchDelayMicros after the first message of a batch, or as soon as the main thread gets to
+// it when the delay is 0 - while the main thread is busy, messages keep collecting either way.
+public class MessageBatcher {
+    public static final int DEFAULT_MAX_BATCH_BYTES = 64 * 1024;
+    public static final long DEFAULT_MAX_BATCH_DELAY_MICROS = 0;
+
+    public interface BatchSender {
+        // main thread, the batch is sent up to its position; release it to the pool once consumed
+        void send(ByteBuffer batch);
+    }
+
+    private final MessageBufferPool pool;
+    private final BatchSender sender;
+    private final int maxBatchBytes;
+    private final long maxBatchDelayMs;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable flushTask = this::flush;
+
+    // guarded by this; the read loop only copies into current, never reads USB with the lock held
+    private ByteBuffer current;
+    private final ArrayDeque<ByteBuffer> closed = new ArrayDeque<>();
+    private boolean flushScheduled = false;
+
+    private long messagesBatched = 0;
+    private long batchesSent = 0;
+    private int largestBatchBytes = 0;
+
+    public MessageBatcher(MessageBufferPool pool, int maxBatchBytes, long maxBatchDelayMicros, BatchSender sender) {
+        this.pool = pool;
+        this.sender = sender;
+        this.maxBatchBytes = Math.max(maxBatchBytes, 1);
+        // Handler delays are milliseconds, a non-zero delay is rounded up
+        this.maxBatchDelayMs = TimeUnit.MICROSECONDS.toMillis(Math.max(maxBatchDelayMicros, 0) + 999);
+    }
+
+    /**
+     * Copies one framed message (0 up to its position) into the current batch.
+     * The caller keeps the message buffer.
+     */
+    public void add(ByteBuffer message) {
+        int length = message.position();
+
+        synchronized (this) {
+            if (current != null && current.remaining() < length) {
+                closeCurrent();
+            }
+
+            if (current == null) {
+                current = pool.acquire(Math.max(length, maxBatchBytes));
+            }
+
+            // no duplicate() per message: the put leaves the position at length again, the limit is put back
+            int limit = message.limit();
+            message.limit(length);
+            message.position(0);
+            current.put(message);
+            message.limit(limit);
+            messagesBatched++;
+
+            // a full batch still waits for the flush, the main thread takes all closed batches in one go
+            if (current.position() >= maxBatchBytes) {
+                closeCurrent();
+            }
+
+            if (!flushScheduled) {
+                flushScheduled = true;
+                if (maxBatchDelayMs > 0) {
+                    mainHandler.postDelayed(flushTask, maxBatchDelayMs);
+                } else {
+                    mainHandler.post(flushTask);
+                }
+            }
+        }
+    }
+
+    private void closeCurrent() {
+        if (current == null) return;
+
+        if (current.position() > 0) {
+            closed.add(current);
+        } else {
+            pool.release(current);
+        }
+        current = null;
+    }
+
+    // main thread
+    private void flush() {
+        ByteBuffer[] batches;
+
+        synchronized (this) {
+            flushScheduled = false;
+            closeCurrent();
+            batches = closed.toArray(new ByteBuffer[0]);
+            closed.clear();
+
+            for (ByteBuffer batch : batches) {
+                batchesSent++;
+                largestBatchBytes = Math.max(largestBatchBytes, batch.position());
+            }
+        }
+
+        for (ByteBuffer batch : batches) {
+            sender.send(batch);
+        }
+    }
+
+    public synchronized String getStats() {
+        double perBatch = batchesSent > 0 ? (double) messagesBatched / batchesSent : 0.0;
+        return String.format("messages: %d, batches: %d, %.1f messages/batch, largest: %d bytes",
+                messagesBatched, batchesSent, perBatch, largestBatchBytes);
+    }
+}
@@ -0,0 +1,73 @@
+package ru.bukharskii.carlink;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+// Direct little-endian buffers for the binary message channel, in power-of-two size classes.
+// A buffer comes back once the Dart side has replied to its message, so steady traffic
+// (audio PCM at hundreds of messages per second) doesn't allocate.
+// acquire() runs on the read loop thread, release() on the main thread.
+public class MessageBufferPool {
+    private static final int MIN_SIZE_SHIFT = 8;   // 256 bytes
+    private static final int MAX_SIZE_SHIFT = 20;  // 1MB, larger messages get a one-off buffer
+    private static final int MAX_BUFFERS_PER_CLASS = 16;
+
+    private final ConcurrentLinkedQueue<ByteBuffer>[] sizeClasses;
+
+    // written by the acquiring thread only
+    private volatile long buffersAllocated = 0;
+    private volatile long buffersReused = 0;
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MessageBufferPool() {
+        sizeClasses = new ConcurrentLinkedQueue[MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1];
+        for (int i = 0; i < sizeClasses.length; i++) {
+            sizeClasses[i] = new ConcurrentLinkedQueue<>();
+        }
+    }
+
+    private static int sizeClassOf(int size) {
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(1, size - 1));
+        return Math.max(shift, MIN_SIZE_SHIFT) - MIN_SIZE_SHIFT;
+    }
+
+    /**
+     * @return a cleared buffer with at least size bytes, position 0, limit at its capacity
+     */
+    public ByteBuffer acquire(int size) {
+        int sizeClass = sizeClassOf(size);
+
+        if (sizeClass < sizeClasses.length) {
+            ByteBuffer buffer = sizeClasses[sizeClass].poll();
+            if (buffer != null) {
+                buffersReused++;
+                buffer.clear();
+                return buffer;
+            }
+        }
+
+        buffersAllocated++;
+        int capacity = sizeClass < sizeClasses.length ? 1 << (sizeClass + MIN_SIZE_SHIFT) : size;
+        return ByteBuffer.allocateDirect(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    public void release(ByteBuffer buffer) {
+        int capacity = buffer.capacity();
+        int sizeClass = sizeClassOf(capacity);
+
+        // one-off buffers and anything over the per-class limit go to the GC
+        if (sizeClass >= sizeClasses.length || capacity != 1 << (sizeClass + MIN_SIZE_SHIFT)) {
+            return;
+        }
+
+        ConcurrentLinkedQueue<ByteBuffer> pool = sizeClasses[sizeClass];
+        if (pool.size() < MAX_BUFFERS_PER_CLASS) {
+            pool.offer(buffer);
+        }
+    }
+
+    public String getStats() {
+        return "allocated: " + buffersAllocated + ", reused: " + buffersReused;
+    }
+}
@@ -0,0 +1,231 @@
+package ru.bukharskii.carlink;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.MediaRecorder;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Microphone uplink for Siri and calls: a capture thread reads AudioRecord straight into complete
+// AudioData messages that go out in the scheduler's AUDIO class, Dart only starts and stops it.
+// A frame is [CarLinkMessageHeader][decodeType][volume][audioType][FRAME_MS of PCM], the headers
+// are written once when the frame is allocated, frames are reused.
+// bulkTransfer only takes arrays, so the frames are pooled byte[] rather than direct buffers.
+public class MicUplink {
+    private static final String LOG_TAG = "CARLINK";
+
+    // 16kHz mono, what the dongle expects from the host microphone
+    public static final int DEFAULT_DECODE_TYPE = 5;
+    public static final int DEFAULT_AUDIO_TYPE = 3;
+    public static final int FRAME_MS = 20;
+
+    // frames waiting to be written, a capture beyond that is dropped rather than sent late
+    private static final int MAX_FRAMES_IN_FLIGHT = 4;
+    private static final int MESSAGE_MAGIC = 0x55aa55aa;
+    private static final int AUDIO_DATA_TYPE = 7;
+    private static final int PCM_OFFSET = CarLinkMessageHeader.MESSAGE_LENGTH + AudioSink.AUDIO_HEADER_LENGTH;
+
+    private final UsbWriteScheduler.Transport transport;
+    private final int timeoutMs;
+    private final UsbWriteScheduler writeScheduler;
+    private final LogCallback logCallback;
+    private final int decodeType;
+    private final int audioType;
+    private final int sampleRate;
+    private final int channels;
+    private final int pcmLength;
+
+    private final ConcurrentLinkedQueue<byte[]> freeFrames = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger framesInFlight = new AtomicInteger();
+
+    private volatile boolean running = false;
+    private Thread captureThread;
+
+    // each written by one thread only, capture or usbOut
+    private volatile long framesCaptured = 0;
+    private volatile long framesDropped = 0;
+    private volatile long framesSent = 0;
+    private volatile long sendErrors = 0;
+    private volatile long sendLatencyTotalNs = 0;
+    private volatile long sendLatencyMaxNs = 0;
+
+    public MicUplink(UsbDeviceConnection connection, UsbEndpoint endpoint, int timeoutMs, int decodeType, int audioType, UsbWriteScheduler writeScheduler, LogCallback logCallback) {
+        int sampleRate = AudioSink.sampleRateOf(decodeType);
+        if (sampleRate < 0) {
+            throw new IllegalArgumentException("decodeType: " + decodeType);
+        }
+
+        this.transport = new UsbWriteScheduler.BulkTransport(connection, endpoint);
+        this.timeoutMs = timeoutMs;
+        this.decodeType = decodeType;
+        this.audioType = audioType;
+        this.writeScheduler = writeScheduler;
+        this.logCallback = logCallback;
+        this.sampleRate = sampleRate;
+        this.channels = AudioSink.channelsOf(decodeType);
+        this.pcmLength = sampleRate * FRAME_MS / 1000 * channels * 2;
+    }
+
+    private void log(String message) {
+        Log.d(LOG_TAG, "[MIC] " + message);
+        if (logCallback != null) {
+            logCallback.log("[MIC] " + message);
+        }
+    }
+
+    /**
+     * @return false if the microphone can't be opened, RECORD_AUDIO not granted or in use
+     */
+    public synchronized boolean start() {
+        if (running) return true;
+
+        int channelMask = channels == 1 ? AudioFormat.CHANNEL_IN_MONO : AudioFormat.CHANNEL_IN_STEREO;
+        int minBufferSize = AudioRecord.getMinBufferSize(sampleRate, channelMask, AudioFormat.ENCODING_PCM_16BIT);
+
+        AudioRecord record;
+        try {
+            record = new AudioRecord.Builder()
+                    .setAudioSource(MediaRecorder.AudioSource.VOICE_COMMUNICATION)
+                    .setAudioFormat(new AudioFormat.Builder()
+                            .setSampleRate(sampleRate)
+                            .setChannelMask(channelMask)
+                            .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                            .build())
+                    .setBufferSizeInBytes(Math.max(minBufferSize, 4 * pcmLength))
+                    .build();
+        } catch (Exception e) {
+            log("AudioRecord failed: " + e.toString());
+            return false;
+        }
+
+        if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+            log("AudioRecord not initialized");
+            record.release();
+            return false;
+        }
+
+        running = true;
+        captureThread = new Thread(() -> capture(record), "Carlink-MicUplink");
+        captureThread.start();
+
+        log("started, " + sampleRate + "Hz, " + channels + "ch, " + FRAME_MS + "ms frames");
+        return true;
+    }
+
+    // false once stopped, also when the capture failed on its own
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Stops capturing, frames already queued are still sent.
+     */
+    public synchronized void stop() {
+        if (!running) return;
+
+        running = false;
+        try {
+            // a blocking read returns within a frame
+            captureThread.join(10L * FRAME_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        captureThread = null;
+
+        log("stopped, " + getStats());
+    }
+
+    private void capture(AudioRecord record) {
+        android.os.Process.setThreadPriority(android.os.Process.THREAD_PRIORITY_URGENT_AUDIO);
+
+        try {
+            record.startRecording();
+
+            while (running) {
+                byte[] frame = freeFrames.poll();
+                if (frame == null) {
+                    frame = newFrame();
+                }
+
+                int read = record.read(frame, PCM_OFFSET, pcmLength, AudioRecord.READ_BLOCKING);
+                if (read < 0) {
+                    log("AudioRecord read failed: " + read);
+                    freeFrames.offer(frame);
+                    break;
+                }
+
+                // short reads only happen while stopping
+                if (read < pcmLength) {
+                    freeFrames.offer(frame);
+                    continue;
+                }
+
+                framesCaptured++;
+
+                if (framesInFlight.get() >= MAX_FRAMES_IN_FLIGHT) {
+                    framesDropped++;
+                    freeFrames.offer(frame);
+                    continue;
+                }
+
+                framesInFlight.incrementAndGet();
+                final byte[] captured = frame;
+                final long capturedNanos = System.nanoTime();
+                writeScheduler.submit(UsbWriteScheduler.Priority.AUDIO, transport, captured, 0, captured.length, timeoutMs,
+                        actualLength -> sent(captured, capturedNanos, actualLength));
+            }
+        } catch (Exception e) {
+            log("capture failed: " + e.toString());
+        } finally {
+            running = false;
+            try {
+                record.stop();
+            } catch (Exception e) {
+                // releasing anyway
+            }
+            record.release();
+        }
+    }
+
+    // usbOut thread
+    private void sent(byte[] frame, long capturedNanos, int actualLength) {
+        if (actualLength < 0) {
+            sendErrors++;
+        } else {
+            framesSent++;
+            long latencyNs = System.nanoTime() - capturedNanos;
+            sendLatencyTotalNs += latencyNs;
+            if (latencyNs > sendLatencyMaxNs) {
+                sendLatencyMaxNs = latencyNs;
+            }
+        }
+
+        framesInFlight.decrementAndGet();
+        freeFrames.offer(frame);
+    }
+
+    private byte[] newFrame() {
+        byte[] frame = new byte[PCM_OFFSET + pcmLength];
+        ByteBuffer.wrap(frame).order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(MESSAGE_MAGIC)
+                .putInt(AudioSink.AUDIO_HEADER_LENGTH + pcmLength)
+                .putInt(AUDIO_DATA_TYPE)
+                .putInt(~AUDIO_DATA_TYPE)
+                .putInt(decodeType)
+                .putFloat(0.0f)
+                .putInt(audioType);
+        return frame;
+    }
+
+    public String getStats() {
+        double averageMs = framesSent > 0 ? sendLatencyTotalNs / 1e6 / framesSent : 0.0;
+        return String.format("captured: %d, sent: %d, dropped: %d, errors: %d, capture to sent: %.1fms avg, %.1fms max",
+                framesCaptured, framesSent, framesDropped, sendErrors, averageMs, sendLatencyMaxNs / 1e6);
+    }
+}
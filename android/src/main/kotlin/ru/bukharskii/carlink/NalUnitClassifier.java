@@ -0,0 +1,122 @@
+package ru.bukharskii.carlink;
+
+import java.nio.ByteBuffer;
+
+// Minimal Annex-B scan of an H.264 access unit, reads NAL headers up to the first slice only
+final class NalUnitClassifier {
+    static final int SPS = 1;
+    static final int PPS = 1 << 1;
+    // first slice is an IDR slice, decoding can restart here
+    static final int IDR = 1 << 2;
+    // first slice is a regular (non-IDR) slice
+    static final int NON_IDR = 1 << 3;
+    // other frames may reference this one (nal_ref_idc != 0), dropping it corrupts the following P-frames
+    static final int REFERENCE = 1 << 4;
+
+    // packet carries parameter sets
+    static final int CONFIG = SPS | PPS;
+    // packet carries a picture
+    static final int SLICE = IDR | NON_IDR;
+
+    static final int NAL_SLICE = 1;
+    static final int NAL_IDR = 5;
+    static final int NAL_SPS = 7;
+    static final int NAL_PPS = 8;
+
+    private NalUnitClassifier() {
+    }
+
+    static boolean isReferenceFrame(int flags) {
+        return (flags & SLICE) != 0 && (flags & REFERENCE) != 0;
+    }
+
+    static int classify(ByteBuffer data, int from, int to) {
+        int flags = 0;
+        int zeros = 0;
+
+        for (int i = from; i < to - 1; i++) {
+            byte value = data.get(i);
+
+            if (value == 0) {
+                zeros++;
+                continue;
+            }
+
+            if (value == 1 && zeros >= 2) {
+                int header = data.get(i + 1) & 0xFF;
+                int type = header & 0x1F;
+
+                if (type == NAL_SPS) {
+                    flags |= SPS;
+                } else if (type == NAL_PPS) {
+                    flags |= PPS;
+                } else if (type >= NAL_SLICE && type <= NAL_IDR) {
+                    flags |= type == NAL_IDR ? IDR : NON_IDR;
+                    if ((header & 0x60) != 0) {
+                        flags |= REFERENCE;
+                    }
+                    return flags;
+                }
+
+                i++;
+            }
+
+            zeros = 0;
+        }
+
+        // no slice: parameter sets only or something we don't understand, never treat it as disposable
+        return flags | REFERENCE;
+    }
+
+    /**
+     * Copies the first NAL unit of the given type, start code included, so it can be fed to a decoder on its own.
+     * Stops looking at the first slice, parameter sets always come before it.
+     *
+     * @return null if there is no such NAL unit before the first slice
+     */
+    static byte[] copyNalUnit(ByteBuffer data, int from, int to, int nalType) {
+        int start = -1;
+        int zeros = 0;
+
+        for (int i = from; i < to - 1; i++) {
+            byte value = data.get(i);
+
+            if (value == 0) {
+                zeros++;
+                continue;
+            }
+
+            if (value == 1 && zeros >= 2) {
+                int startCode = i - Math.min(zeros, 3);
+
+                if (start >= 0) {
+                    return copy(data, start, startCode);
+                }
+
+                int type = data.get(i + 1) & 0x1F;
+                if (type == nalType) {
+                    start = startCode;
+                } else if (type >= NAL_SLICE && type <= NAL_IDR) {
+                    return null;
+                }
+
+                i++;
+            }
+
+            zeros = 0;
+        }
+
+        return start >= 0 ? copy(data, start, to) : null;
+    }
+
+    private static byte[] copy(ByteBuffer data, int from, int to) {
+        ByteBuffer view = data.duplicate();
+        view.clear();
+        view.limit(to);
+        view.position(from);
+
+        byte[] bytes = new byte[to - from];
+        view.get(bytes);
+        return bytes;
+    }
+}
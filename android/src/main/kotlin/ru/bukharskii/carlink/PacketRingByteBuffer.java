@@ -1,306 +1,1023 @@
 package ru.bukharskii.carlink;
 
 
-import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 public class PacketRingByteBuffer {
     public interface DirectWriteCallback {
          void write(byte[] bytes, int offset);
     }
 
-    private byte[] buffer;
-    private int readPosition = 0;
-    private int writePosition = 0;
+    // target is positioned at the payload and limited to its end, fill it with exactly length bytes
+    public interface ByteBufferWriteCallback {
+         void write(ByteBuffer target);
+    }
 
-    private int lastWritePositionBeforeEnd = 0;
+    public enum ConcurrencyMode {
+        // Every read and write takes the object monitor, any number of threads may use the buffer
+        // and it may grow when a packet does not fit
+        SYNCHRONIZED,
+        // Exactly one writer thread and one reader thread (or readers serialized by an external lock).
+        // Read/write sequences are published through volatile fields, no monitor is taken,
+        // and the capacity is fixed because the writer can't move data the reader may be looking at
+        SINGLE_PRODUCER_SINGLE_CONSUMER
+    }
 
-    private int packetCount = 0;
+    public enum Backing {
+        // byte[] on the Java heap, DirectWriteCallback gets the array itself
+        HEAP,
+        // ByteBuffer.allocateDirect, kept out of the managed heap and copied native-to-native
+        // into codec input buffers. DirectWriteCallback goes through a reused staging array.
+        DIRECT
+    }
 
-    private LogCallback logCallback;
+    // What the writer does when a packet doesn't fit. Every policy except GROW keeps the capacity fixed,
+    // packets are classified (NalUnitClassifier) so the decoder is never fed a P-frame whose reference was dropped.
+    public enum OverflowPolicy {
+        // double the capacity and keep everything, SYNCHRONIZED only
+        GROW,
+        // wait for the reader up to the producer block timeout, then drop the incoming packet
+        BLOCK_PRODUCER,
+        // an incoming IDR discards the whole backlog, anything else is dropped
+        // together with every following packet until the next IDR
+        DROP_UNTIL_IDR,
+        // an incoming non-reference packet is dropped, for a reference packet the queued
+        // non-reference packets are skipped and the producer waits; if it still doesn't fit
+        // it is dropped and packets are dropped until the next IDR
+        DROP_NON_REFERENCE
+    }
+
+    // Record layout: [int length][int skipBytesCount][int flags][long arrivalNanos][length bytes of payload]
+    // A record is never split across the end of the buffer. When it doesn't fit at the tail,
+    // the writer stores PADDING_MARKER (if at least a header fits) and continues at index 0.
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8;
+    private static final int FLAGS_OFFSET = 8;
+    // System.nanoTime() when the producer started writing the packet, the decoder uses it as presentation time
+    private static final int ARRIVAL_OFFSET = 12;
+    private static final int PADDING_MARKER = -1;
+    // set on a queued record the reader must not return, the other flags come from NalUnitClassifier
+    private static final int FLAG_SKIPPED = 1 << 8;
+
+    // How long a producer waits for the reader to free space before dropping the packet
+    private static final long DEFAULT_PRODUCER_BLOCK_TIMEOUT_MS = 100;
+    private static final long WAIT_PARK_NS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final ConcurrencyMode mode;
+    private final Backing backing;
+    private final OverflowPolicy overflowPolicy;
+    private long producerBlockTimeoutNs = TimeUnit.MILLISECONDS.toNanos(DEFAULT_PRODUCER_BLOCK_TIMEOUT_MS);
+
+    // SYNCHRONIZED: serializes writers, so a writer waiting on the monitor keeps its scratch data
+    private final Object writeLock = new Object();
+    private boolean writerWaiting = false;
+
+    private ByteBuffer storage;
+    private int capacity;
+
+    // Monotonic byte positions, index in storage = sequence % capacity.
+    // writeSequence/packetsWritten are only advanced by the writer,
+    // readSequence/packetsRead only by the reader.
+    // A leased packet stays behind readSequence until releasePacket(),
+    // so the writer can't overwrite it while it is being copied.
+    // The sequences are the source of truth, packet counters are statistics.
+    private volatile long writeSequence = 0;
+    private volatile long readSequence = 0;
+    private volatile long packetsWritten = 0;
+    private volatile long packetsRead = 0;
+
+    // Writer-side copy of readSequence, refreshed only when the buffer looks full,
+    // so the writer doesn't pull the reader's cache line on every packet
+    private long cachedReadSequence = 0;
+
+    // Set by the writer, everything before sequence is stale and is dropped by the reader (or by the
+    // writer itself in SYNCHRONIZED mode when nothing is leased). Carries the writer's counters at
+    // that point, so the reader can jump past records the writer may already have overwritten.
+    private static final class DiscardRequest {
+        final long sequence;
+        final long packets;
+        final long referenceFrames;
+
+        DiscardRequest(long sequence, long packets, long referenceFrames) {
+            this.sequence = sequence;
+            this.packets = packets;
+            this.referenceFrames = referenceFrames;
+        }
+    }
 
-//    public static void test() {
-//
-//        PacketRingByteBuffer buf = new PacketRingByteBuffer(20);
-//
-//        Log.d("RING_BUFFER_TEST", "test start");
-//
-//        buf.writePacket(new byte[10], 0, 10);
-//        assert(buf.writePosition == 14);
-//
-//        buf.writePacket(new byte[10], 0, 10);
-//        assert(buf.writePosition == 28);
-//
-//        ByteBuffer packet;
-//
-//        packet = buf.readPacket();
-//        assert(buf.readPosition == 14 && packet.remaining() == 10);
-//
-//        packet = buf.readPacket();
-//        assert(buf.readPosition == 28 && packet.remaining() == 10);
-//
-//        buf.writePacket(new byte[10], 0, 10);
-//        assert(buf.writePosition == 10);
-//
-//        buf.writePacket(new byte[10], 0, 10);
-//        assert(buf.writePosition == 24);
-//
-//        buf.writePacket(new byte[10], 0, 10);
-//        assert(buf.readPosition == 0 && buf.writePosition == 42);
-//
-//        packet = buf.readPacket();
-//        packet = buf.readPacket();
-//        packet = buf.readPacket();
-//
-//        for(int i=0; i<50; i++) {
-//            byte[] b = new byte[5];
-//            b[0] = (byte)(i+1);
-//            b[1] = (byte)(i+2);
-//            b[2] = (byte)(i+3);
-//            b[3] = (byte)(i+4);
-//            b[4] = (byte)(i+5);
-//
-//            buf.writePacket(b, 0, b.length);
-//        }
-//
-//        for(int i=0; i<50; i++) {
-//            packet = buf.readPacket();
-//
-//            byte b1 = packet.get(packet.position());
-//            byte b2 = packet.get(packet.position() + 1);
-//
-//            if(b1 != i+1 || b2 != i+2) {
-//                Log.d("TAG", "");
-//            }
-//        }
-//    }
+    private volatile DiscardRequest discardRequest;
+
+    // SINGLE_PRODUCER_SINGLE_CONSUMER: true while the reader walks records or holds a lease. The writer
+    // posts a discard request before reading this, the reader sets it before reading the request, so
+    // a writer that sees the reader idle may reuse the discarded backlog at once (reclaimedSequence)
+    private volatile boolean readerActive = false;
+    // writer-owned, bytes before it are free even though readSequence hasn't caught up yet
+    private long reclaimedSequence = 0;
+
+    // Writer-owned: a reference packet was dropped, the decoder can't use anything until the next IDR
+    private volatile boolean awaitingIdr = false;
+
+    // NAL index, maintained as records are published (writer) and consumed (reader).
+    // Start sequence of the newest IDR record, queued while it is >= readSequence
+    private volatile long latestIdrSequence = -1;
+    private volatile long referenceFramesWritten = 0;
+    private volatile long referenceFramesRead = 0;
+    // Latest parameter sets with start codes, replaced as a whole so readers never see a partial copy
+    private volatile byte[] cachedSps;
+    private volatile byte[] cachedPps;
+
+    // Overflow statistics, each counter has a single writing thread
+    private volatile long droppedPackets = 0;
+    private volatile long producerBlocks = 0;
+    private volatile long producerBlockTimeouts = 0;
+    private volatile long droppedNonReference = 0;
+    private volatile long skippedNonReference = 0;
+    private volatile long droppedAwaitingIdr = 0;
+    private volatile long idrResyncs = 0;
+    private volatile long backlogDiscards = 0;
+    private volatile long discardedPackets = 0;
+
+    // Writer-owned scratch array: sink for dropped packets (the callback still has to run,
+    // otherwise the producer (USB read) would leave the body on the wire), holding area for
+    // an overflowing packet until its type is known, and staging for byte[] callbacks in DIRECT mode
+    private byte[] scratch = new byte[0];
+    private ByteBuffer scratchView = ByteBuffer.wrap(scratch);
+
+    // Writer-owned view handed to ByteBufferWriteCallback
+    private ByteBuffer writeView;
+
+    // Reader-owned view over the whole storage, repositioned for every lease instead of wrapping per packet
+    private ByteBuffer readView;
+    private boolean leased = false;
+    private int leasedFlags = 0;
+    private long leasedArrivalNanos = 0;
+
+    private LogCallback logCallback;
 
     public PacketRingByteBuffer(int initialSize) {
-        buffer = new byte[initialSize];
+        this(initialSize, ConcurrencyMode.SYNCHRONIZED);
+    }
+
+    public PacketRingByteBuffer(int initialSize, ConcurrencyMode mode) {
+        this(initialSize, mode, Backing.HEAP);
+    }
+
+    public PacketRingByteBuffer(int initialSize, ConcurrencyMode mode, Backing backing) {
+        this(initialSize, mode, backing, mode == ConcurrencyMode.SYNCHRONIZED ? OverflowPolicy.GROW : OverflowPolicy.BLOCK_PRODUCER);
+    }
+
+    public PacketRingByteBuffer(int initialSize, ConcurrencyMode mode, Backing backing, OverflowPolicy overflowPolicy) {
+        if (overflowPolicy == OverflowPolicy.GROW && mode != ConcurrencyMode.SYNCHRONIZED) {
+            throw new IllegalArgumentException("GROW needs SYNCHRONIZED mode, got " + mode);
+        }
+
+        this.mode = mode;
+        this.backing = backing;
+        this.overflowPolicy = overflowPolicy;
+        setStorage(allocate(initialSize));
     }
 
     private void log(String message) {
 //        logCallback.log(message);
     }
 
+    private ByteBuffer allocate(int size) {
+        return backing == Backing.DIRECT ? ByteBuffer.allocateDirect(size) : ByteBuffer.wrap(new byte[size]);
+    }
+
+    private void setStorage(ByteBuffer newStorage) {
+        storage = newStorage;
+        capacity = newStorage.capacity();
+        readView = newStorage.duplicate();
+        writeView = newStorage.duplicate();
+    }
+
+    public ConcurrencyMode getMode() {
+        return mode;
+    }
+
+    public Backing getBacking() {
+        return backing;
+    }
+
+    public OverflowPolicy getOverflowPolicy() {
+        return overflowPolicy;
+    }
+
+    // Call before the producer starts
+    public void setProducerBlockTimeoutMillis(long timeoutMs) {
+        producerBlockTimeoutNs = TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
     public boolean isEmpty() {
-        return packetCount == 0;
+        return readSequence == writeSequence;
     }
 
     public int availablePacketsToRead() {
-        return packetCount;
+        return (int) Math.max(0, packetsWritten - packetsRead);
+    }
+
+    public boolean isAwaitingIdr() {
+        return awaitingIdr;
+    }
+
+    public boolean hasQueuedIdr() {
+        long idr = latestIdrSequence;
+        return idr >= 0 && idr >= readSequence;
+    }
+
+    // queued packets carrying a reference slice (IDR or P), i.e. frames the decoder can't skip
+    public long getPendingReferenceFrameCount() {
+        return Math.max(0, referenceFramesWritten - referenceFramesRead);
+    }
+
+    /**
+     * Last SPS followed by the last PPS seen in the stream, Annex-B with start codes,
+     * ready to be queued with BUFFER_FLAG_CODEC_CONFIG after a codec reset.
+     *
+     * @return null until both have been received
+     */
+    public byte[] getCodecConfig() {
+        byte[] sps = cachedSps;
+        byte[] pps = cachedPps;
+        if (sps == null || pps == null) {
+            return null;
+        }
+
+        byte[] config = new byte[sps.length + pps.length];
+        System.arraycopy(sps, 0, config, 0, sps.length);
+        System.arraycopy(pps, 0, config, sps.length, pps.length);
+        return config;
+    }
+
+    // every incoming packet that was not stored, whatever the reason
+    public long getDroppedPacketCount() {
+        return droppedPackets;
+    }
+
+    // times the producer had to wait for space
+    public long getProducerBlockCount() {
+        return producerBlocks;
+    }
+
+    // waits that ended without space
+    public long getProducerBlockTimeoutCount() {
+        return producerBlockTimeouts;
+    }
+
+    // incoming non-reference packets dropped by DROP_NON_REFERENCE
+    public long getDroppedNonReferenceCount() {
+        return droppedNonReference;
+    }
+
+    // queued non-reference packets the reader skipped
+    public long getSkippedNonReferenceCount() {
+        return skippedNonReference;
+    }
+
+    // incoming packets dropped because a reference was lost, including the one that started it
+    public long getDroppedAwaitingIdrCount() {
+        return droppedAwaitingIdr;
+    }
+
+    // IDRs that ended a drop-until-IDR period
+    public long getIdrResyncCount() {
+        return idrResyncs;
+    }
+
+    public long getBacklogDiscardCount() {
+        return backlogDiscards;
+    }
+
+    // queued packets removed by backlog discards
+    public long getDiscardedPacketCount() {
+        return discardedPackets;
+    }
+
+    private int index(long sequence) {
+        return (int) (sequence % capacity);
+    }
+
+    private long freeSpace() {
+        return capacity - (writeSequence - cachedReadSequence);
+    }
+
+    // bytes the writer has to skip at the tail before a record of this size can be placed
+    private int wrapGapFor(int length) {
+        int tail = capacity - index(writeSequence);
+        return tail < RECORD_HEADER_SIZE + length ? tail : 0;
     }
 
-    private void reorganizeAndResizeIfNeeded() {
+    private boolean hasSpaceFor(int length) {
+        return freeSpace() >= wrapGapFor(length) + RECORD_HEADER_SIZE + length;
+    }
 
-        int available = 0;
-        if (writePosition > readPosition) {
-            available = readPosition + buffer.length - writePosition;
+    private boolean hasSpaceForRefreshed(int length) {
+        if (hasSpaceFor(length)) {
+            return true;
         }
-        else {
-            available = readPosition - writePosition;
+
+        refreshReadSequence();
+        return hasSpaceFor(length);
+    }
+
+    private void refreshReadSequence() {
+        cachedReadSequence = Math.max(readSequence, reclaimedSequence);
+    }
+
+    // SYNCHRONIZED only: repack live records from index 0 of a bigger store with the same backing
+    private void resize(int newLength) {
+        log("RESIZE to:" + newLength + ", read:" + readSequence + ", write:" + writeSequence + ", length:" + capacity + ", count:" + availablePacketsToRead());
+
+        ByteBuffer newStorage = allocate(newLength);
+        ByteBuffer source = storage.duplicate();
+        int newWritePosition = 0;
+
+        long newLatestIdr = -1;
+
+        long sequence = readSequence;
+        while (sequence < writeSequence) {
+            sequence = recordStart(sequence);
+            int position = index(sequence);
+
+            if (sequence == latestIdrSequence) {
+                newLatestIdr = newWritePosition;
+            }
+
+            int recordLength = RECORD_HEADER_SIZE + readInt(position);
+            source.limit(position + recordLength);
+            source.position(position);
+            newStorage.position(newWritePosition);
+            newStorage.put(source);
+            source.clear();
+
+            newWritePosition += recordLength;
+            sequence += recordLength;
         }
 
-        // resize
-        int newLength = buffer.length;
-        if (available < buffer.length / 2) {
-            newLength = newLength * 2;
-            log("RESIZE to:"+newLength+", read:"+readPosition+", write:"+writePosition+", length:"+buffer.length+", count:"+availablePacketsToRead());
+        // A leased packet keeps pointing into the old store, it is the first record of the new one
+        // and releasePacket() skips it by reading its header again.
+        setStorage(newStorage);
+        readSequence = 0;
+        writeSequence = newWritePosition;
+        cachedReadSequence = 0;
+        reclaimedSequence = 0;
+        discardRequest = null;
+        latestIdrSequence = newLatestIdr;
+
+        log("RESIZE done, read:" + readSequence + ", write:" + writeSequence + ", length:" + capacity + ", count:" + availablePacketsToRead());
+    }
+
+    private boolean awaitSpaceFor(int length) {
+        if (RECORD_HEADER_SIZE + length > capacity) {
+            return false;
         }
 
-        byte[] newBuffer = new byte[newLength];
+        long deadline = System.nanoTime() + producerBlockTimeoutNs;
+        producerBlocks++;
 
-        if (writePosition < readPosition) {
-            int dataAtEndLength = lastWritePositionBeforeEnd - readPosition;
+        while (true) {
+            reclaimIfReaderIdle();
+            refreshReadSequence();
+            if (hasSpaceFor(length)) {
+                return true;
+            }
 
-            // Validate parameters to prevent ArrayIndexOutOfBoundsException
-            if (dataAtEndLength < 0 || dataAtEndLength > buffer.length || readPosition < 0 || readPosition + dataAtEndLength > buffer.length) {
-                log("CRITICAL: Invalid end copy parameters - readPosition: " + readPosition + ", dataAtEndLength: " + dataAtEndLength + ", bufferLength: " + buffer.length);
-                // Reset to safe state
-                readPosition = 0;
-                writePosition = 0;
-                packetCount = 0;
-                return;
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                producerBlockTimeouts++;
+                return false;
             }
 
-            if (writePosition < 0 || writePosition > buffer.length || dataAtEndLength + writePosition > newBuffer.length) {
-                log("CRITICAL: Invalid start copy parameters - writePosition: " + writePosition + ", dataAtEndLength: " + dataAtEndLength + ", newBufferLength: " + newBuffer.length);
-                // Reset to safe state
-                readPosition = 0;
-                writePosition = 0;
-                packetCount = 0;
-                return;
+            if (mode == ConcurrencyMode.SYNCHRONIZED) {
+                // release the monitor so the reader can make room, releasePacket() wakes us up
+                writerWaiting = true;
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    producerBlockTimeouts++;
+                    return false;
+                } finally {
+                    writerWaiting = false;
+                }
+            } else {
+                LockSupport.parkNanos(Math.min(remaining, WAIT_PARK_NS));
             }
+        }
+    }
 
-            // copy end
-            System.arraycopy(buffer, readPosition, newBuffer, 0, dataAtEndLength);
-
-            // copy from start
-            System.arraycopy(buffer, 0, newBuffer, dataAtEndLength, writePosition);
-
-            // update positions
-            readPosition = 0;
-            writePosition += dataAtEndLength;
-        }
-        else {
-            int copyLength = writePosition - readPosition;
-            
-            // Validate parameters to prevent ArrayIndexOutOfBoundsException
-            if (copyLength < 0 || readPosition < 0 || readPosition + copyLength > buffer.length || copyLength > newBuffer.length) {
-                log("CRITICAL: Invalid linear copy parameters - readPosition: " + readPosition + ", writePosition: " + writePosition + ", copyLength: " + copyLength + ", bufferLength: " + buffer.length);
-                // Reset to safe state
-                readPosition = 0;
-                writePosition = 0;
-                packetCount = 0;
-                return;
+    /**
+     * Writes a record of length bytes, the callback fills the payload in place.
+     * With DIRECT backing the bytes go through a staging array first,
+     * the ByteBufferWriteCallback variant writes straight into the store.
+     */
+    public void directWriteToBuffer(int length, int skipBytesCount, DirectWriteCallback callback) {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (writeLock) {
+                synchronized (this) {
+                    writeRecord(length, skipBytesCount, callback, null);
+                }
             }
+        } else {
+            writeRecord(length, skipBytesCount, callback, null);
+        }
+    }
 
-            System.arraycopy(buffer, readPosition, newBuffer, 0, copyLength);
+    public void directWriteToBuffer(int length, int skipBytesCount, ByteBufferWriteCallback callback) {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (writeLock) {
+                synchronized (this) {
+                    writeRecord(length, skipBytesCount, null, callback);
+                }
+            }
+        } else {
+            writeRecord(length, skipBytesCount, null, callback);
+        }
+    }
+
+    // exactly one of arrayCallback/bufferCallback is set
+    private void writeRecord(int length, int skipBytesCount, DirectWriteCallback arrayCallback, ByteBufferWriteCallback bufferCallback) {
+        // Validate input parameters to prevent corruption
+        if (length < 0) {
+            // nothing the callback could be given, the caller has to deal with the body itself
+            throw new IllegalArgumentException("Invalid write length: " + length);
+        }
+        if (skipBytesCount < 0 || skipBytesCount > length) {
+            log("CRITICAL: Invalid write parameters - length: " + length + ", skipBytesCount: " + skipBytesCount);
+            // the callback still runs, otherwise the producer (USB read) would leave the body on the wire
+            drain(length, arrayCallback, bufferCallback);
+            droppedPackets++;
+            return;
+        }
+
+        // taken before the callback, so the time spent reading the body from USB is not counted
+        long arrivalNanos = System.nanoTime();
 
-            writePosition -= readPosition;
-            readPosition = 0;
+        // Prevent excessively large packets that could cause memory issues
+        if (length > capacity / 2) {
+            log("WARNING: Large packet size " + length + " bytes, buffer size: " + capacity);
+            // Still allow but warn about potential issues
         }
 
-        log("RESIZE done, read:"+readPosition+", write:"+writePosition+", length:"+buffer.length+", count:"+availablePacketsToRead());
+        if (!hasSpaceForRefreshed(length)) {
+            switch (overflowPolicy) {
+                case GROW:
+                    grow(length);
+                    break;
+                case BLOCK_PRODUCER:
+                    if (!awaitSpaceFor(length)) {
+                        // The reader is stalled, the USB thread must not be blocked any longer
+                        log("WARNING: Dropping packet of " + length + " bytes, no space after " + TimeUnit.NANOSECONDS.toMillis(producerBlockTimeoutNs) + "ms");
+                        drain(length, arrayCallback, bufferCallback);
+                        droppedPackets++;
+                        return;
+                    }
+                    break;
+                default:
+                    writeOverflowingRecord(length, skipBytesCount, arrivalNanos, arrayCallback, bufferCallback);
+                    return;
+            }
+        }
 
-        buffer = newBuffer;
+        long sequence = placeRecord(length, skipBytesCount);
+        int payload = index(sequence) + RECORD_HEADER_SIZE;
+
+        // 3. write data
+        if (bufferCallback != null) {
+            writeView.clear();
+            writeView.limit(payload + length);
+            writeView.position(payload);
+            bufferCallback.write(writeView);
+        } else if (storage.hasArray()) {
+            arrayCallback.write(storage.array(), storage.arrayOffset() + payload);
+        } else {
+            arrayCallback.write(scratchFor(length), 0);
+            copyFromScratch(payload, length);
+        }
+
+        int flags = NalUnitClassifier.classify(storage, payload + skipBytesCount, payload + length);
+        if (!admit(flags)) {
+            // never published, the next record is placed over it
+            return;
+        }
+
+        publishRecord(sequence, length, skipBytesCount, flags, arrivalNanos);
     }
 
-    private int availableSpaceAtHead() {
-        if (writePosition < readPosition) {
-            return readPosition - writePosition;
+    private void grow(int length) {
+        int newLength = capacity;
+        long used = writeSequence - readSequence;
+        while (newLength - used < RECORD_HEADER_SIZE + length) {
+            newLength = newLength * 2;
         }
+        resize(newLength);
+    }
+
+    // The packet is read into scratch first: whether it may replace the backlog or must be dropped
+    // depends on its NAL type, which is only known once the producer has delivered it.
+    private void writeOverflowingRecord(int length, int skipBytesCount, long arrivalNanos, DirectWriteCallback arrayCallback, ByteBufferWriteCallback bufferCallback) {
+        drain(length, arrayCallback, bufferCallback);
 
-        return buffer.length - writePosition;
+        int flags = NalUnitClassifier.classify(scratchView, skipBytesCount, length);
+        boolean reference = (flags & NalUnitClassifier.REFERENCE) != 0;
+
+        if (awaitingIdr && (flags & NalUnitClassifier.IDR) == 0) {
+            droppedAwaitingIdr++;
+            droppedPackets++;
+            return;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP_NON_REFERENCE && !reference) {
+            droppedNonReference++;
+            droppedPackets++;
+            return;
+        }
+
+        if (overflowPolicy == OverflowPolicy.DROP_UNTIL_IDR && (flags & NalUnitClassifier.IDR) != 0) {
+            requestBacklogDiscard();
+        } else if (overflowPolicy == OverflowPolicy.DROP_NON_REFERENCE) {
+            skippedNonReference += markQueuedNonReferenceSkipped();
+        }
+
+        if (!hasSpaceForRefreshed(length) && !awaitSpaceFor(length)) {
+            log("WARNING: Dropping packet of " + length + " bytes, flags: " + flags + ", waiting for IDR");
+            if (overflowPolicy == OverflowPolicy.DROP_UNTIL_IDR || reference) {
+                awaitingIdr = true;
+                droppedAwaitingIdr++;
+            } else {
+                droppedNonReference++;
+            }
+            droppedPackets++;
+            return;
+        }
+
+        long sequence = placeRecord(length, skipBytesCount);
+        copyFromScratch(index(sequence) + RECORD_HEADER_SIZE, length);
+
+        if (admit(flags)) {
+            publishRecord(sequence, length, skipBytesCount, flags, arrivalNanos);
+        }
     }
-    private int availableSpaceAtStart() {
-        if (writePosition < readPosition) {
-            return 0;
+
+    // writes tail padding (if needed) and the header, returns the sequence of the record
+    private long placeRecord(int length, int skipBytesCount) {
+        long sequence = writeSequence;
+        int gap = wrapGapFor(length);
+        if (gap > 0) {
+            // mark the unused tail so the reader skips it
+            if (gap >= RECORD_HEADER_SIZE) {
+                writeInt(index(sequence), PADDING_MARKER);
+            }
+            sequence += gap;
         }
 
-        return readPosition;
+        int position = index(sequence);
+
+        // 1. write packet length
+        writeInt(position, length);
+
+        // 2. write skip bytes count
+        writeInt(position + 4, skipBytesCount);
+
+        return sequence;
     }
 
-    public void directWriteToBuffer(int length, int skipBytesCount, DirectWriteCallback callback) {
-        synchronized (this) {
-            // Validate input parameters to prevent corruption
-            if (length < 0 || skipBytesCount < 0 || skipBytesCount > length) {
-                log("CRITICAL: Invalid write parameters - length: " + length + ", skipBytesCount: " + skipBytesCount);
-                return; // Abort write operation
+    private void publishRecord(long sequence, int length, int skipBytesCount, int flags, long arrivalNanos) {
+        int position = index(sequence);
+        writeInt(position + FLAGS_OFFSET, flags);
+        storage.putLong(position + ARRIVAL_OFFSET, arrivalNanos);
+
+        if ((flags & NalUnitClassifier.CONFIG) != 0) {
+            cacheParameterSets(position + RECORD_HEADER_SIZE + skipBytesCount, position + RECORD_HEADER_SIZE + length, flags);
+        }
+
+        if (NalUnitClassifier.isReferenceFrame(flags)) {
+            referenceFramesWritten++;
+        }
+
+        // 4. publish position, the volatile write makes the record visible to the reader
+        writeSequence = sequence + RECORD_HEADER_SIZE + length;
+
+        // 5. update count
+        packetsWritten++;
+
+        if ((flags & NalUnitClassifier.IDR) != 0) {
+            latestIdrSequence = sequence;
+        }
+    }
+
+    // parameter sets are rare (stream start, resolution change), copying them out is cheap
+    private void cacheParameterSets(int from, int to, int flags) {
+        if ((flags & NalUnitClassifier.SPS) != 0) {
+            byte[] sps = NalUnitClassifier.copyNalUnit(storage, from, to, NalUnitClassifier.NAL_SPS);
+            if (sps != null) {
+                cachedSps = sps;
             }
-            
-            // Prevent excessively large packets that could cause memory issues
-            if (length > buffer.length / 2) {
-                log("WARNING: Large packet size " + length + " bytes, buffer size: " + buffer.length);
-                // Still allow but warn about potential issues
+        }
+
+        if ((flags & NalUnitClassifier.PPS) != 0) {
+            byte[] pps = NalUnitClassifier.copyNalUnit(storage, from, to, NalUnitClassifier.NAL_PPS);
+            if (pps != null) {
+                cachedPps = pps;
             }
+        }
+    }
 
-            boolean hasSpaceToWriteLength = availableSpaceAtHead() > 4 + 4;
-            boolean hasSpaceAtHead = availableSpaceAtHead() > length + 4 + 4;
-            boolean hasSpaceAtStart = availableSpaceAtStart() > length + 4 + 4;
+    // false while waiting for an IDR: parameter sets still pass, the IDR ends the wait
+    private boolean admit(int flags) {
+        if (!awaitingIdr) {
+            return true;
+        }
 
-            while (!hasSpaceToWriteLength || !(hasSpaceAtStart || hasSpaceAtHead)) {
-                reorganizeAndResizeIfNeeded();
+        if ((flags & NalUnitClassifier.IDR) != 0) {
+            awaitingIdr = false;
+            idrResyncs++;
+            return true;
+        }
 
-                hasSpaceToWriteLength = availableSpaceAtHead() > 4 + 4;
-                hasSpaceAtHead = availableSpaceAtHead() > length + 4 + 4;
-                hasSpaceAtStart = availableSpaceAtStart() > length + 4 + 4;
-            }
+        if ((flags & NalUnitClassifier.CONFIG) != 0) {
+            return true;
+        }
 
-            // 1. write packet length
-            writeInt(writePosition, length);
-            writePosition += 4;
+        droppedAwaitingIdr++;
+        droppedPackets++;
+        return false;
+    }
+
+    private void requestBacklogDiscard() {
+        long target = writeSequence;
+        backlogDiscards++;
 
-            // 2. write skip bytes count
-            writeInt(writePosition, skipBytesCount);
-            writePosition += 4;
+        if (mode == ConcurrencyMode.SYNCHRONIZED && !leased) {
+            // holding the monitor, the reader is not looking at anything
+            discardUpTo(target);
+        } else {
+            discardRequest = new DiscardRequest(target, packetsWritten, referenceFramesWritten);
+            reclaimIfReaderIdle();
+        }
+    }
 
-            // 3. write data
-            if (!hasSpaceAtHead && hasSpaceAtStart) {
-                // mark
-                lastWritePositionBeforeEnd = writePosition;
+    // SINGLE_PRODUCER_SINGLE_CONSUMER writer: a stalled reader must not hold up the IDR that replaces
+    // the backlog. While the reader is outside the buffer the requested backlog is free right away,
+    // the reader jumps past it on its next call without reading it.
+    private void reclaimIfReaderIdle() {
+        DiscardRequest request = discardRequest;
+        if (mode != ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER || request == null || readerActive) {
+            return;
+        }
+
+        reclaimedSequence = Math.max(reclaimedSequence, request.sequence);
+    }
 
-                // reset position
-                writePosition = 0;
+    // Marks queued non-reference records so the reader skips them without decoding, returns how many.
+    // Only the flags word is touched, lengths stay valid for the other side walking the same records;
+    // writer and reader can only race on setting the same bit.
+    private long markQueuedNonReferenceSkipped() {
+        long sequence = readSequence;
+        long end = writeSequence;
+        long marked = 0;
+
+        while (sequence < end) {
+            sequence = recordStart(sequence);
+            int position = index(sequence);
+            int flags = readInt(position + FLAGS_OFFSET);
+
+            if ((flags & (NalUnitClassifier.REFERENCE | FLAG_SKIPPED)) == 0) {
+                writeInt(position + FLAGS_OFFSET, flags | FLAG_SKIPPED);
+                marked++;
             }
 
-            callback.write(buffer, writePosition);
+            sequence += RECORD_HEADER_SIZE + readInt(position);
+        }
 
-            // 4. update position
-            writePosition += length;
+        return marked;
+    }
 
-            // 5. update count
-            packetCount ++;
+    private byte[] scratchFor(int length) {
+        if (scratch.length < length) {
+            scratch = new byte[length];
+            scratchView = ByteBuffer.wrap(scratch);
         }
+        return scratch;
+    }
+
+    private void copyFromScratch(int payload, int length) {
+        writeView.clear();
+        writeView.position(payload);
+        writeView.put(scratch, 0, length);
     }
 
+    // runs the callback into scratch, so the producer consumes the packet even if it is not stored
+    private void drain(int length, DirectWriteCallback arrayCallback, ByteBufferWriteCallback bufferCallback) {
+        byte[] sink = scratchFor(length);
+
+        if (bufferCallback != null) {
+            bufferCallback.write(ByteBuffer.wrap(sink, 0, length));
+        } else {
+            arrayCallback.write(sink, 0);
+        }
+    }
 
     public void writePacket(byte[] source, int srcOffset, int length) {
-        directWriteToBuffer(length, 0, (buf, off) -> System.arraycopy(source, srcOffset, buf, off, length));
+        directWriteToBuffer(length, 0, (ByteBufferWriteCallback) target -> target.put(source, srcOffset, length));
     }
 
-    ByteBuffer readPacket() {
-        synchronized (this) {
-            int length = readInt(readPosition);
-            readPosition += 4;
+    /**
+     * Lends the payload of the oldest packet without copying it. The returned view is reused
+     * for every lease and is only valid until {@link #releasePacket()}, which must be called
+     * once the bytes have been consumed (copied into the codec input buffer).
+     *
+     * @return null if there is nothing to read
+     */
+    ByteBuffer acquirePacket() {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (this) {
+                return acquireRecord();
+            }
+        }
 
-            int skipBytes = readInt(readPosition);
-            readPosition += 4;
+        enterReader();
+        try {
+            return acquireRecord();
+        } finally {
+            exitReader();
+        }
+    }
 
-            // Validate parameters to prevent ArrayIndexOutOfBoundsException
-            if (length < 0 || skipBytes < 0 || skipBytes > length) {
-                log("CRITICAL: Invalid packet parameters - length: " + length + ", skipBytes: " + skipBytes);
-                // Reset to safe state
-                readPosition = 0;
-                writePosition = 0;
-                packetCount = 0;
-                return ByteBuffer.allocate(0); // Return empty buffer
+    // SINGLE_PRODUCER_SINGLE_CONSUMER reader, around every walk over the records: from here on the
+    // writer won't reclaim anything, and whatever it reclaimed before is skipped first
+    private void enterReader() {
+        readerActive = true;
+        if (!leased) {
+            applyDiscardRequest();
+        }
+    }
+
+    private void exitReader() {
+        readerActive = leased;
+    }
+
+    // NalUnitClassifier flags of the packet returned by acquirePacket()
+    int getLeasedPacketFlags() {
+        return leasedFlags;
+    }
+
+    // System.nanoTime() at which the packet returned by acquirePacket() started arriving
+    long getLeasedPacketArrivalNanos() {
+        return leasedArrivalNanos;
+    }
+
+    void releasePacket() {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (this) {
+                releaseRecord();
+                if (writerWaiting) {
+                    notifyAll();
+                }
             }
+        } else {
+            enterReader();
+            releaseRecord();
+            exitReader();
+        }
+    }
+
+    // position of the record at sequence after skipping the writer's tail padding
+    private long recordStart(long sequence) {
+        int position = index(sequence);
+        int tail = capacity - position;
+
+        if (tail < RECORD_HEADER_SIZE || readInt(position) == PADDING_MARKER) {
+            return sequence + tail;
+        }
+
+        return sequence;
+    }
+
+    private ByteBuffer acquireRecord() {
+        if (leased) {
+            throw new IllegalStateException("previous packet was not released");
+        }
 
-            // reset position if on the end
-            if (readPosition + length > buffer.length) {
-                readPosition = 0;
+        applyDiscardRequest();
+
+        while (!isEmpty()) {
+            long start = recordStart(readSequence);
+            int position = index(start);
+
+            int length = readInt(position);
+            int skipBytes = readInt(position + 4);
+            int flags = readInt(position + FLAGS_OFFSET);
+
+            if ((flags & FLAG_SKIPPED) != 0) {
+                consumeRecord(start);
+                continue;
             }
 
-            // Additional bounds checking
+            // Validate parameters to prevent IndexOutOfBoundsException
             int actualLength = length - skipBytes;
-            int startPos = readPosition + skipBytes;
-            
-            if (actualLength < 0 || startPos < 0 || startPos + actualLength > buffer.length) {
-                log("CRITICAL: Buffer bounds exceeded - startPos: " + startPos + ", actualLength: " + actualLength + ", bufferLength: " + buffer.length);
-                // Reset to safe state
-                readPosition = 0;
-                writePosition = 0;
-                packetCount = 0;
-                return ByteBuffer.allocate(0); // Return empty buffer
+            int startPos = position + RECORD_HEADER_SIZE + skipBytes;
+
+            if (length < 0 || skipBytes < 0 || skipBytes > length || startPos + actualLength > capacity) {
+                log("CRITICAL: Invalid packet parameters - length: " + length + ", skipBytes: " + skipBytes + ", position: " + position + ", bufferLength: " + capacity);
+                // Reset to safe state, records can't be walked anymore
+                long packets = packetsWritten;
+                long references = referenceFramesWritten;
+                readSequence = writeSequence;
+                packetsRead = packets;
+                referenceFramesRead = references;
+                return null;
+            }
+
+            readView.clear();
+            readView.limit(startPos + actualLength);
+            readView.position(startPos);
+
+            leased = true;
+            leasedFlags = flags;
+            leasedArrivalNanos = storage.getLong(position + ARRIVAL_OFFSET);
+            return readView;
+        }
+
+        return null;
+    }
+
+    private void releaseRecord() {
+        if (!leased) {
+            return;
+        }
+
+        // read the header again, a resize may have moved the record
+        consumeRecord(recordStart(readSequence));
+
+        leased = false;
+
+        applyDiscardRequest();
+    }
+
+    // reader side: moves past the record that starts at start
+    private void consumeRecord(long start) {
+        int position = index(start);
+
+        if (NalUnitClassifier.isReferenceFrame(readInt(position + FLAGS_OFFSET))) {
+            referenceFramesRead++;
+        }
+
+        readSequence = start + RECORD_HEADER_SIZE + readInt(position);
+        packetsRead++;
+    }
+
+    /**
+     * Drops everything queued before the newest IDR, so the decoder restarts from a keyframe
+     * instead of working through stale frames. Reader side, like acquirePacket().
+     *
+     * @return number of packets skipped
+     */
+    public long skipToLatestIdr() {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (this) {
+                return skipToIdr();
             }
+        }
 
-            ByteBuffer result = ByteBuffer.wrap(buffer, startPos, actualLength);
-            readPosition += length;
+        enterReader();
+        try {
+            return skipToIdr();
+        } finally {
+            exitReader();
+        }
+    }
 
-            packetCount --;
+    /**
+     * Makes the reader pass over every queued non-reference packet, the decoded picture doesn't
+     * depend on them. Reader side, like acquirePacket().
+     *
+     * @return number of packets that will be skipped
+     */
+    public long skipQueuedNonReference() {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (this) {
+                return leased ? 0 : markQueuedNonReferenceSkipped();
+            }
+        }
 
-            return result;
+        enterReader();
+        try {
+            return leased ? 0 : markQueuedNonReferenceSkipped();
+        } finally {
+            exitReader();
         }
     }
 
+    /**
+     * Arrival time of the oldest queued packet, see {@link #getLeasedPacketArrivalNanos()}.
+     * Reader side, like acquirePacket().
+     *
+     * @return -1 if nothing is queued
+     */
+    public long getOldestPacketArrivalNanos() {
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (this) {
+                return oldestArrivalNanos();
+            }
+        }
+
+        enterReader();
+        try {
+            return oldestArrivalNanos();
+        } finally {
+            exitReader();
+        }
+    }
+
+    private long oldestArrivalNanos() {
+        if (!leased) {
+            applyDiscardRequest();
+        }
+
+        if (isEmpty()) {
+            return -1;
+        }
+
+        return storage.getLong(index(recordStart(readSequence)) + ARRIVAL_OFFSET);
+    }
+
+    private long skipToIdr() {
+        long idr = latestIdrSequence;
+        if (leased || idr < 0 || idr <= readSequence) {
+            return 0;
+        }
+
+        return discardRecordsUpTo(idr);
+    }
+
+    // reader side
+    private void applyDiscardRequest() {
+        DiscardRequest request = discardRequest;
+        if (request == null || request.sequence <= readSequence) {
+            return;
+        }
+
+        // the records may be overwritten already, the request's counters stand in for walking them
+        discardedPackets += Math.max(0, request.packets - packetsRead);
+        packetsRead = request.packets;
+        referenceFramesRead = request.referenceFrames;
+        readSequence = request.sequence;
+        leased = false;
+    }
+
+    private void discardUpTo(long target) {
+        discardedPackets += discardRecordsUpTo(target);
+    }
+
+    // absolute big-endian access, same layout for both backings
     private void writeInt(int offset, int value) {
-       buffer[offset]   = (byte) ((value & 0xFF000000) >> 24);
-       buffer[offset+1] = (byte) ((value & 0x00FF0000) >> 16);
-       buffer[offset+2] = (byte) ((value & 0x0000FF00) >> 8);
-       buffer[offset+3] = (byte)  (value & 0x000000FF);
+        storage.putInt(offset, value);
     }
 
     private int readInt(int offset) {
-        return  ((buffer[offset]   << 24) & 0xFF000000) |
-                ((buffer[offset+1] << 16) & 0x00FF0000) |
-                ((buffer[offset+2] << 8)  & 0x0000FF00) |
-                ((buffer[offset+3])       & 0x000000FF);
+        return storage.getInt(offset);
+    }
+
+    // reader side: the records before target (a record start or writeSequence) become consumed, returns how many
+    private long discardRecordsUpTo(long target) {
+        long discarded = 0;
+
+        while (readSequence < target) {
+            long start = recordStart(readSequence);
+            if (start >= target) {
+                break;
+            }
+
+            consumeRecord(start);
+            discarded++;
+        }
+
+        readSequence = target;
+        leased = false;
+
+        return discarded;
     }
 
+    // In SINGLE_PRODUCER_SINGLE_CONSUMER mode this must be called from the reader thread
     public void reset() {
-        packetCount = 0;
-        writePosition = 0;
-        readPosition = 0;
+        if (mode == ConcurrencyMode.SYNCHRONIZED) {
+            synchronized (this) {
+                discardRecordsUpTo(writeSequence);
+                if (writerWaiting) {
+                    notifyAll();
+                }
+            }
+        } else {
+            enterReader();
+            discardRecordsUpTo(writeSequence);
+            exitReader();
+        }
     }
 }
@@ -0,0 +1,359 @@
+package ru.bukharskii.carlink;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.concurrent.TimeoutException;
+
+// Bulk IN reader that keeps several transfers (URBs) queued on the endpoint, so the bus never idles
+// between a completion and the next submission the way back-to-back bulkTransfer calls do.
+// Completed transfers are consumed in submission order as one byte stream and requeued as soon as
+// they are used up; framing (CarLinkMessageHeader + body) stays with the caller.
+// Transfers grow with the messages seen (a 300KB IDR should arrive in one transfer, not 19),
+// a transfer completes early on a short packet, so small messages don't wait for large transfers.
+// A message ending on a packet boundary has no short packet though, the transfer holds it until
+// more data (or a zero length packet) arrives; transfers never grow past the largest message seen,
+// so that message fills its transfer instead.
+// Not thread safe, owned by the read loop thread.
+public class UsbBulkReader {
+    private static final String LOG_TAG = "CARLINK";
+
+    public static final int DEFAULT_TRANSFER_COUNT = 4;
+    public static final int DEFAULT_TRANSFER_SIZE = 16384;
+    // upper bound of the adaptive size, per queued transfer
+    public static final int MAX_TRANSFER_SIZE = 512 * 1024;
+
+    private static final class Transfer {
+        final UsbRequest request;
+        ByteBuffer buffer;
+        boolean completed = false;
+
+        Transfer(UsbRequest request, ByteBuffer buffer) {
+            this.request = request;
+            this.buffer = buffer;
+        }
+    }
+
+    private final UsbDeviceConnection connection;
+    private final UsbEndpoint endpoint;
+    private final int transferCount;
+    private final int packetSize;
+    // smallest transfer, the configured size
+    private final int transferSize;
+    private final int maxTransferSize;
+    // size new submissions get, follows largeMessageEstimate
+    private int targetTransferSize;
+    private final int timeoutMs;
+    private final LogCallback logCallback;
+
+    // queued on the endpoint, oldest first
+    private final ArrayDeque<Transfer> inFlight;
+    // completed transfer being consumed, its buffer is flipped (position..limit is unread data)
+    private Transfer current;
+    private boolean opened = false;
+    // every request of this reader, for abort() from another thread; guarded by itself
+    private final ArrayList<UsbRequest> requests;
+    private volatile boolean aborted = false;
+
+    private long transfersCompleted = 0;
+    private long bytesCompleted = 0;
+
+    // Message size distribution: a max that decays by 1/64 per message, so one large IDR
+    // keeps the transfers large for the following frames without sticking forever
+    private int largeMessageEstimate = 0;
+    private int largestMessage = 0;
+    private long messagesRead = 0;
+    private long transfersAtMessageStart = 0;
+    private long maxTransfersPerMessage = 0;
+    private long transferResizes = 0;
+
+    /**
+     * @param transferSize minimum transfer size, rounded up to a multiple of the endpoint's max packet size,
+     *                     a transfer ending mid-packet would overflow; transfers grow up to MAX_TRANSFER_SIZE
+     *                     when the messages are larger
+     * @param timeoutMs    how long a read waits for the next completed transfer, 0 or less waits
+     *                     until a transfer completes or abort() is called
+     */
+    public UsbBulkReader(UsbDeviceConnection connection, UsbEndpoint endpoint, int transferCount, int transferSize, int timeoutMs, LogCallback logCallback) {
+        if (transferCount < 1 || transferSize < 1) {
+            throw new IllegalArgumentException("transferCount: " + transferCount + ", transferSize: " + transferSize);
+        }
+
+        this.connection = connection;
+        this.endpoint = endpoint;
+        this.transferCount = transferCount;
+        this.packetSize = Math.max(1, endpoint.getMaxPacketSize());
+        this.transferSize = roundUpToPacket(transferSize);
+        this.maxTransferSize = Math.max(this.transferSize, roundUpToPacket(MAX_TRANSFER_SIZE));
+        this.targetTransferSize = this.transferSize;
+        this.timeoutMs = timeoutMs;
+        this.logCallback = logCallback;
+        this.inFlight = new ArrayDeque<>(transferCount);
+        this.requests = new ArrayList<>(transferCount);
+    }
+
+    private int roundUpToPacket(int size) {
+        return (size + packetSize - 1) / packetSize * packetSize;
+    }
+
+    private void log(String message) {
+        Log.d(LOG_TAG, "[USB] " + message);
+        if (logCallback != null) {
+            logCallback.log(message);
+        }
+    }
+
+    /**
+     * Allocates and queues all transfers.
+     *
+     * @return false if the endpoint didn't take them, nothing stays queued then
+     */
+    public boolean open() {
+        if (opened) return true;
+
+        for (int i = 0; i < transferCount; i++) {
+            UsbRequest request = new UsbRequest();
+            if (!request.initialize(connection, endpoint)) {
+                log("UsbRequest initialize failed");
+                request.close();
+                close();
+                return false;
+            }
+
+            Transfer transfer = new Transfer(request, ByteBuffer.allocateDirect(transferSize));
+            request.setClientData(transfer);
+            synchronized (requests) {
+                requests.add(request);
+            }
+
+            if (!submit(transfer)) {
+                request.close();
+                close();
+                return false;
+            }
+        }
+
+        opened = true;
+        log("bulk reader opened, transfers: " + transferCount + " x " + transferSize + " bytes");
+        return true;
+    }
+
+    /**
+     * Reads exactly length bytes into buffer.
+     *
+     * @return length, or -1 on a USB error or timeout
+     */
+    public int read(byte[] buffer, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > buffer.length) {
+            Log.e(LOG_TAG, "[USB] CRITICAL: Buffer overrun - buffer.size: " + buffer.length + ", offset: " + offset + ", length: " + length);
+            return -1;
+        }
+
+        int done = 0;
+        while (done < length) {
+            if (!ensureData()) return -1;
+
+            ByteBuffer source = current.buffer;
+            int count = Math.min(source.remaining(), length - done);
+            source.get(buffer, offset + done, count);
+            done += count;
+        }
+
+        return length;
+    }
+
+    /**
+     * Fills buffer from its position up to its limit, the position is advanced.
+     *
+     * @return number of bytes read, or -1 on a USB error or timeout
+     */
+    public int read(ByteBuffer buffer) {
+        int length = buffer.remaining();
+
+        while (buffer.hasRemaining()) {
+            if (!ensureData()) return -1;
+
+            ByteBuffer source = current.buffer;
+            int count = Math.min(source.remaining(), buffer.remaining());
+            int limit = source.limit();
+            source.limit(source.position() + count);
+            buffer.put(source);
+            source.limit(limit);
+        }
+
+        return length;
+    }
+
+    /**
+     * Unread data of the completed transfer being consumed (position..limit), waits for the next
+     * transfer when it is used up. Moving the position forward consumes the bytes.
+     *
+     * @return null on a USB error or timeout
+     */
+    ByteBuffer available() {
+        return ensureData() ? current.buffer : null;
+    }
+
+    /**
+     * Marks the end of a framed message (header + body), feeds the message size distribution
+     * the transfer size adapts to and the transfers per message counter.
+     */
+    public void messageComplete(int length) {
+        messagesRead++;
+
+        // completions this message waited for, a transfer shared by several small messages counts once
+        long transfers = transfersCompleted - transfersAtMessageStart;
+        transfersAtMessageStart = transfersCompleted;
+        if (transfers > maxTransfersPerMessage) {
+            maxTransfersPerMessage = transfers;
+        }
+
+        largeMessageEstimate = Math.max(length, largeMessageEstimate - largeMessageEstimate / 64);
+        largestMessage = Math.max(length, largestMessage);
+
+        // next power of two, so a slowly decaying estimate doesn't reallocate on every message,
+        // but no larger than any message could fill
+        int wanted = Math.min(Integer.highestOneBit(Math.max(1, largeMessageEstimate - 1)) << 1, largestMessage);
+        targetTransferSize = roundUpToPacket(Math.min(maxTransferSize, Math.max(transferSize, wanted)));
+    }
+
+    // makes current a completed transfer with unread data, requeueing the used up ones
+    private boolean ensureData() {
+        while (current == null || !current.buffer.hasRemaining()) {
+            if (aborted) return false;
+
+            if (current != null) {
+                Transfer used = current;
+                current = null;
+                if (!submit(used)) return false;
+            }
+
+            // bulk transfers on one endpoint complete in submission order,
+            // waiting on the oldest one keeps the stream in order anyway
+            Transfer head = inFlight.peekFirst();
+            if (head == null) return false;
+
+            while (!head.completed) {
+                Transfer completed = awaitCompletion();
+                if (completed == null) return false;
+                completed.completed = true;
+            }
+
+            inFlight.pollFirst();
+            head.completed = false;
+            head.buffer.flip();
+            transfersCompleted++;
+            bytesCompleted += head.buffer.remaining();
+            current = head;
+        }
+
+        return true;
+    }
+
+    private Transfer awaitCompletion() {
+        while (true) {
+            if (aborted) {
+                log("bulk reader aborted");
+                return null;
+            }
+
+            UsbRequest request;
+            try {
+                // requestWait(0) returns at once instead of blocking
+                request = timeoutMs > 0 ? connection.requestWait(timeoutMs) : connection.requestWait();
+            } catch (TimeoutException e) {
+                log("no transfer completed in " + timeoutMs + "ms");
+                return null;
+            } catch (Exception e) {
+                log("requestWait failed: " + e.toString());
+                return null;
+            }
+
+            if (request == null) {
+                log("requestWait failed, connection closed?");
+                return null;
+            }
+
+            // requests of other owners on the same connection are not ours to handle
+            Object clientData = request.getClientData();
+            if (clientData instanceof Transfer && inFlight.contains(clientData)) {
+                return (Transfer) clientData;
+            }
+        }
+    }
+
+    private boolean submit(Transfer transfer) {
+        if (transfer.buffer.capacity() != targetTransferSize) {
+            transfer.buffer = ByteBuffer.allocateDirect(targetTransferSize);
+            transferResizes++;
+        }
+
+        transfer.buffer.clear();
+        if (!transfer.request.queue(transfer.buffer)) {
+            log("UsbRequest queue failed");
+            return false;
+        }
+
+        inFlight.addLast(transfer);
+        return true;
+    }
+
+    /**
+     * From any thread: cancels the queued transfers, so the read waiting for them returns -1
+     * right away instead of at its timeout. The reader is still closed by its owner.
+     */
+    public void abort() {
+        aborted = true;
+
+        synchronized (requests) {
+            for (UsbRequest request : requests) {
+                try {
+                    request.cancel();
+                } catch (Exception e) {
+                    // the read fails either way
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancels the queued transfers and releases them. Unread data is lost.
+     */
+    public void close() {
+        synchronized (requests) {
+            for (Transfer transfer : inFlight) {
+                try {
+                    transfer.request.cancel();
+                } catch (Exception e) {
+                    // closing anyway
+                }
+            }
+
+            for (Transfer transfer : inFlight) {
+                transfer.request.close();
+            }
+            inFlight.clear();
+
+            if (current != null) {
+                current.request.close();
+                current = null;
+            }
+
+            requests.clear();
+        }
+
+        opened = false;
+    }
+
+    public String getStats() {
+        double average = transfersCompleted > 0 ? (double) bytesCompleted / transfersCompleted : 0.0;
+        double perMessage = messagesRead > 0 ? (double) transfersCompleted / messagesRead : 0.0;
+        return String.format("transfers: %d, bytes: %d, avg: %.0f bytes/transfer, per message: %.2f (max %d), transfer size: %d, resizes: %d",
+                transfersCompleted, bytesCompleted, average, perMessage, maxTransfersPerMessage, targetTransferSize, transferResizes);
+    }
+}
@@ -0,0 +1,287 @@
+package ru.bukharskii.carlink;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+// Outbound USB writes, one queue per priority class drained highest first on the usbOut executor:
+// touch input, then the microphone uplink, then control messages, then file uploads. A write
+// that is running finishes, but nothing waits behind a queued upload any more.
+// A touch move that is still queued when the next move of the same pointers arrives is replaced
+// by it, the dongle only needs the latest position; the replaced write completes as sent.
+public class UsbWriteScheduler {
+    public enum Priority {
+        TOUCH,
+        AUDIO,
+        CONTROL,
+        BULK
+    }
+
+    public interface Transport {
+        // bulkTransfer, returns the bytes written or a negative error
+        int write(byte[] data, int offset, int length, int timeoutMs);
+    }
+
+    // bulkTransfer on an OUT endpoint; equal for the same connection and endpoint, writes to
+    // the same endpoint can coalesce even though every call creates its own transport
+    public static final class BulkTransport implements Transport {
+        private final UsbDeviceConnection connection;
+        private final UsbEndpoint endpoint;
+
+        public BulkTransport(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+            this.connection = connection;
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public int write(byte[] data, int offset, int length, int timeoutMs) {
+            return connection.bulkTransfer(endpoint, data, offset, length, timeoutMs);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof BulkTransport)) return false;
+            BulkTransport transport = (BulkTransport) other;
+            return transport.connection == connection && transport.endpoint == endpoint;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(connection) + System.identityHashCode(endpoint);
+        }
+    }
+
+    public interface WriteCallback {
+        // usbOut thread, or the submitting thread for a coalesced write
+        void onComplete(int actualLength);
+    }
+
+    // MessageType ids, see lib/common.dart
+    private static final int TYPE_TOUCH = 0x05;
+    private static final int TYPE_AUDIO_DATA = 0x07;
+    private static final int TYPE_MULTI_TOUCH = 0x17;
+    private static final int TYPE_SEND_FILE = 0x99;
+
+    private static final int TOUCH_ACTION_MOVE = 15;
+    private static final int MULTI_TOUCH_ACTION_MOVE = 2;
+    private static final int MULTI_TOUCH_ITEM_LENGTH = 16;
+
+    // anything larger than this is an upload whatever its type
+    static final int BULK_THRESHOLD = 16 * 1024;
+
+    private static final class Write {
+        final Priority priority;
+        final Transport transport;
+        byte[] data;
+        int offset;
+        int length;
+        final int timeoutMs;
+        WriteCallback callback;
+        final long enqueuedNanos;
+
+        Write(Priority priority, Transport transport, byte[] data, int offset, int length, int timeoutMs, WriteCallback callback) {
+            this.priority = priority;
+            this.transport = transport;
+            this.data = data;
+            this.offset = offset;
+            this.length = length;
+            this.timeoutMs = timeoutMs;
+            this.callback = callback;
+            this.enqueuedNanos = System.nanoTime();
+        }
+    }
+
+    private static final class Queue {
+        final ArrayDeque<Write> writes = new ArrayDeque<>();
+        int maxDepth = 0;
+        long written = 0;
+        long coalesced = 0;
+        long failed = 0;
+        long waitTotalNs = 0;
+        long waitMaxNs = 0;
+    }
+
+    private final Executor usbOut;
+    private final Runnable drainTask = this::drain;
+
+    // guarded by this
+    private final Queue[] queues = new Queue[Priority.values().length];
+    private boolean drainScheduled = false;
+
+    public UsbWriteScheduler(Executor usbOut) {
+        this.usbOut = usbOut;
+        for (int i = 0; i < queues.length; i++) {
+            queues[i] = new Queue();
+        }
+    }
+
+    private static int readInt(byte[] data, int offset) {
+        return ByteBuffer.wrap(data, offset, 4).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    /**
+     * Priority class of a serialised message, from its header type and size.
+     */
+    public static Priority classify(byte[] data, int offset, int length) {
+        if (length > BULK_THRESHOLD) return Priority.BULK;
+        if (length < CarLinkMessageHeader.MESSAGE_LENGTH) return Priority.CONTROL;
+
+        switch (readInt(data, offset + 8)) {
+            case TYPE_TOUCH:
+            case TYPE_MULTI_TOUCH:
+                return Priority.TOUCH;
+            case TYPE_AUDIO_DATA:
+                return Priority.AUDIO;
+            case TYPE_SEND_FILE:
+                return Priority.BULK;
+            default:
+                return Priority.CONTROL;
+        }
+    }
+
+    // single touch move, or a multi touch where every pointer moves
+    private static boolean isTouchMove(byte[] data, int offset, int length) {
+        int type = readInt(data, offset + 8);
+        int body = offset + CarLinkMessageHeader.MESSAGE_LENGTH;
+        int bodyLength = length - CarLinkMessageHeader.MESSAGE_LENGTH;
+
+        if (type == TYPE_TOUCH) {
+            return bodyLength >= 4 && readInt(data, body) == TOUCH_ACTION_MOVE;
+        }
+
+        if (type == TYPE_MULTI_TOUCH) {
+            if (bodyLength <= 0 || bodyLength % MULTI_TOUCH_ITEM_LENGTH != 0) return false;
+            for (int item = body; item < body + bodyLength; item += MULTI_TOUCH_ITEM_LENGTH) {
+                if (readInt(data, item + 8) != MULTI_TOUCH_ACTION_MOVE) return false;
+            }
+            return true;
+        }
+
+        return false;
+    }
+
+    // the newer move makes the queued one redundant: same message type, same pointers
+    private static boolean supersedes(Write queued, byte[] data, int offset, int length) {
+        if (queued.length != length) return false;
+        if (!isTouchMove(queued.data, queued.offset, queued.length) || !isTouchMove(data, offset, length)) return false;
+
+        int type = readInt(data, offset + 8);
+        if (readInt(queued.data, queued.offset + 8) != type) return false;
+
+        if (type == TYPE_MULTI_TOUCH) {
+            for (int item = CarLinkMessageHeader.MESSAGE_LENGTH; item < length; item += MULTI_TOUCH_ITEM_LENGTH) {
+                if (readInt(queued.data, queued.offset + item + 12) != readInt(data, offset + item + 12)) return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * Queues a serialised message, its priority taken from the header.
+     */
+    public void submit(Transport transport, byte[] data, int offset, int length, int timeoutMs, WriteCallback callback) {
+        submit(classify(data, offset, length), transport, data, offset, length, timeoutMs, callback);
+    }
+
+    /**
+     * Queues a write in the given class. The data must stay untouched until the callback.
+     */
+    public void submit(Priority priority, Transport transport, byte[] data, int offset, int length, int timeoutMs, WriteCallback callback) {
+        WriteCallback replaced = null;
+        int replacedLength = 0;
+
+        synchronized (this) {
+            Queue queue = queues[priority.ordinal()];
+            Write tail = queue.writes.peekLast();
+
+            if (priority == Priority.TOUCH && tail != null && tail.transport.equals(transport) && supersedes(tail, data, offset, length)) {
+                // keeps the queued write's place, so the latest position goes out as early as the first one would have
+                replaced = tail.callback;
+                replacedLength = tail.length;
+                tail.data = data;
+                tail.offset = offset;
+                tail.length = length;
+                tail.callback = callback;
+                queue.coalesced++;
+            } else {
+                queue.writes.addLast(new Write(priority, transport, data, offset, length, timeoutMs, callback));
+                queue.maxDepth = Math.max(queue.maxDepth, queue.writes.size());
+            }
+
+            if (!drainScheduled) {
+                drainScheduled = true;
+                usbOut.execute(drainTask);
+            }
+        }
+
+        if (replaced != null) {
+            replaced.onComplete(replacedLength);
+        }
+    }
+
+    private synchronized Write next() {
+        for (Queue queue : queues) {
+            Write write = queue.writes.pollFirst();
+            if (write != null) {
+                long waitNs = System.nanoTime() - write.enqueuedNanos;
+                queue.waitTotalNs += waitNs;
+                queue.waitMaxNs = Math.max(queue.waitMaxNs, waitNs);
+                return write;
+            }
+        }
+
+        drainScheduled = false;
+        return null;
+    }
+
+    // usbOut thread, re-picks the highest class after every write
+    private void drain() {
+        Write write;
+        while ((write = next()) != null) {
+            int actualLength;
+            try {
+                actualLength = write.transport.write(write.data, write.offset, write.length, write.timeoutMs);
+            } catch (Exception e) {
+                actualLength = -1;
+            }
+
+            synchronized (this) {
+                Queue queue = queues[write.priority.ordinal()];
+                if (actualLength < 0) {
+                    queue.failed++;
+                } else {
+                    queue.written++;
+                }
+            }
+
+            write.callback.onComplete(actualLength);
+        }
+    }
+
+    public synchronized int getQueueDepth(Priority priority) {
+        return queues[priority.ordinal()].writes.size();
+    }
+
+    public synchronized long getCoalesced(Priority priority) {
+        return queues[priority.ordinal()].coalesced;
+    }
+
+    public synchronized String getStats() {
+        StringBuilder stats = new StringBuilder();
+        for (Priority priority : Priority.values()) {
+            Queue queue = queues[priority.ordinal()];
+            long taken = queue.written + queue.failed;
+            double waitMs = taken > 0 ? queue.waitTotalNs / 1e6 / taken : 0.0;
+
+            if (stats.length() > 0) stats.append(", ");
+            stats.append(String.format("%s: written %d, failed %d, coalesced %d, depth %d (max %d), wait %.1fms avg %.1fms max",
+                    priority, queue.written, queue.failed, queue.coalesced, queue.writes.size(), queue.maxDepth, waitMs, queue.waitMaxNs / 1e6));
+        }
+        return stats.toString();
+    }
+}
@@ -0,0 +1,90 @@
+package ru.bukharskii.carlink;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Completion reporting for fire-and-forget writes: instead of one reply per message, the results
+// are counted on usbOut and summed up to Dart once per REPORT_INTERVAL_MS while writes complete.
+// A failure is reported on the next main thread turn, Dart restarts on write errors.
+public class WriteReporter {
+    public static final long REPORT_INTERVAL_MS = 1000;
+
+    public interface ReportSender {
+        // main thread
+        void send(Map<String, Object> report);
+    }
+
+    private final ReportSender sender;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Runnable reportTask = this::report;
+
+    // guarded by this, since the last report
+    private long written = 0;
+    private long bytes = 0;
+    private long failed = 0;
+    private int lastError = 0;
+    private long intervalStartMs = 0;
+    private boolean reportScheduled = false;
+    private boolean failureReportScheduled = false;
+
+    public WriteReporter(ReportSender sender) {
+        this.sender = sender;
+    }
+
+    /**
+     * @param actualLength what bulkTransfer returned, negative on error
+     */
+    public synchronized void onComplete(int length, int actualLength) {
+        // the interval starts with its first write, not with the idle time before
+        if (written == 0 && failed == 0) {
+            intervalStartMs = SystemClock.elapsedRealtime();
+        }
+
+        if (actualLength < 0 || actualLength < length) {
+            failed++;
+            lastError = actualLength;
+        } else {
+            written++;
+            bytes += actualLength;
+        }
+
+        if (failed > 0 && !failureReportScheduled) {
+            failureReportScheduled = true;
+            mainHandler.removeCallbacks(reportTask);
+            mainHandler.post(reportTask);
+        } else if (!reportScheduled) {
+            reportScheduled = true;
+            mainHandler.postDelayed(reportTask, REPORT_INTERVAL_MS);
+        }
+    }
+
+    // main thread
+    private void report() {
+        Map<String, Object> report = new HashMap<>();
+
+        synchronized (this) {
+            reportScheduled = false;
+            failureReportScheduled = false;
+            if (written == 0 && failed == 0) return;
+
+            long now = SystemClock.elapsedRealtime();
+            report.put("written", written);
+            report.put("bytes", bytes);
+            report.put("failed", failed);
+            report.put("lastError", lastError);
+            report.put("intervalMs", now - intervalStartMs);
+
+            written = 0;
+            bytes = 0;
+            failed = 0;
+            lastError = 0;
+            intervalStartMs = now;
+        }
+
+        sender.send(report);
+    }
+}
@@ -0,0 +1,118 @@
+package ru.bukharskii.carlink
+
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/*
+ * Plain JVM tests for the audio depth adaptation, time and underruns are fed in by the test.
+ */
+
+internal class AudioJitterBufferTest {
+
+  // 48kHz, 10ms packets
+  private val packetFrames = 480
+  private val packetNanos = TimeUnit.MILLISECONDS.toNanos(10)
+
+  @Test
+  fun startsAtTheMinimumDepth() {
+    val buffer = AudioJitterBuffer(48000, 20, 120)
+
+    assertEquals(960, buffer.targetFrames)
+    assertEquals(5760, buffer.maxDepthFrames)
+  }
+
+  @Test
+  fun growsOnUnderrunUpToTheMaximum() {
+    val buffer = AudioJitterBuffer(48000, 20, 120)
+    var now = 0L
+
+    assertFalse(buffer.onPacket(now, packetFrames, 0))
+    now += packetNanos
+    assertTrue(buffer.onPacket(now, packetFrames, 1))
+    assertEquals(1440, buffer.targetFrames)
+
+    for (underruns in 2..20) {
+      now += packetNanos
+      buffer.onPacket(now, packetFrames, underruns)
+    }
+
+    assertEquals(5760, buffer.targetFrames)
+    assertEquals(20, buffer.underruns)
+  }
+
+  @Test
+  fun shrinksBackWhenArrivalsAreStable() {
+    val buffer = AudioJitterBuffer(48000, 20, 120)
+    var now = 0L
+
+    buffer.onPacket(now, packetFrames, 0)
+    for (underruns in 1..4) {
+      now += packetNanos
+      buffer.onPacket(now, packetFrames, underruns)
+    }
+    val grown = buffer.targetFrames
+
+    // two minutes of packets on time
+    repeat(12000) {
+      now += packetNanos
+      buffer.onPacket(now, packetFrames, 4)
+    }
+
+    assertTrue(buffer.targetFrames < grown)
+    assertEquals(960, buffer.targetFrames)
+  }
+
+  @Test
+  fun burstyArrivalsKeepTheDepthAboveTheJitter() {
+    val buffer = AudioJitterBuffer(48000, 20, 300)
+    var now = 0L
+
+    // 100ms of audio arriving at once every 100ms
+    repeat(200) { i ->
+      now += if (i % 10 == 0) 10 * packetNanos else 0
+      buffer.onPacket(now, packetFrames, 0)
+    }
+
+    assertTrue(buffer.targetFrames > 960)
+  }
+
+  @Test
+  fun overflowsGrowTheDepthAndHoldOffTheShrink() {
+    val buffer = AudioJitterBuffer(48000, 20, 120)
+    var now = 0L
+
+    buffer.onPacket(now, packetFrames, 0)
+    assertTrue(buffer.onOverflow(now))
+    assertEquals(1440, buffer.targetFrames)
+
+    // an overflow every 4s keeps the track from going shallow again
+    repeat(1200) { i ->
+      now += packetNanos
+      buffer.onPacket(now, packetFrames, 0)
+      if (i % 400 == 399) buffer.onOverflow(now)
+    }
+
+    assertTrue(buffer.targetFrames > 1440)
+    assertEquals(4, buffer.overflows)
+    assertEquals(0, buffer.underruns)
+
+    repeat(20) { buffer.onOverflow(now) }
+    assertEquals(5760, buffer.targetFrames)
+    assertFalse(buffer.onOverflow(now))
+  }
+
+  @Test
+  fun underrunsAfterAPauseDontCount() {
+    val buffer = AudioJitterBuffer(48000, 20, 120)
+
+    buffer.onPacket(0, packetFrames, 0)
+    // the source paused for a second, the track ran dry meanwhile
+    assertFalse(buffer.onPacket(TimeUnit.SECONDS.toNanos(1), packetFrames, 3))
+
+    assertEquals(960, buffer.targetFrames)
+    assertEquals(0, buffer.underruns)
+  }
+}
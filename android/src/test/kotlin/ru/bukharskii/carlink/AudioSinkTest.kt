@@ -0,0 +1,77 @@
+package ru.bukharskii.carlink
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertTrue
+
+/*
+ * Plain JVM tests for the native audio playback, the AudioTrack is replaced by a fake
+ * output that records what the sink does with it.
+ */
+
+internal class AudioSinkTest {
+
+  private class FakeOutput : AudioSink.Output {
+    var written = 0
+    var playing = false
+    val volumes = mutableListOf<Float>()
+
+    override fun write(pcm: ByteBuffer, size: Int): Int {
+      pcm.position(pcm.position() + size)
+      written += size
+      return size
+    }
+    override fun setBufferSizeInFrames(frames: Int) {}
+    override fun getUnderrunCount() = 0
+    override fun isPlaying() = playing
+    override fun play() {
+      playing = true
+    }
+    override fun stop() {
+      playing = false
+    }
+    override fun setVolume(volume: Float) {
+      volumes.add(volume)
+    }
+    override fun release() {}
+  }
+
+  // 48kHz stereo, media
+  private fun audioData(volume: Float, payload: ByteArray): ByteBuffer {
+    val body = ByteBuffer.allocate(AudioSink.AUDIO_HEADER_LENGTH + payload.size).order(ByteOrder.LITTLE_ENDIAN)
+    body.putInt(4).putFloat(volume).putInt(1).put(payload)
+    return body
+  }
+
+  @Test
+  fun pcmWithAZeroVolumeFieldPlaysAtFullGain() {
+    val outputs = mutableListOf<FakeOutput>()
+    val sink = AudioSink(null) { _, _, _, _ -> FakeOutput().also { outputs.add(it) } }
+
+    // 10ms packets, past the 40ms prefill
+    val packet = audioData(0.0f, ByteArray(1920))
+    repeat(6) { sink.writePcm(packet, 0, packet.capacity()) }
+
+    assertEquals(1, outputs.size)
+    val output = outputs[0]
+    assertTrue(output.playing)
+    assertEquals(6 * 1920, output.written)
+    assertEquals(emptyList(), output.volumes)
+  }
+
+  @Test
+  fun volumeDurationChangesTheGain() {
+    val outputs = mutableListOf<FakeOutput>()
+    val sink = AudioSink(null) { _, _, _, _ -> FakeOutput().also { outputs.add(it) } }
+
+    val packet = audioData(0.0f, ByteArray(1920))
+    sink.writePcm(packet, 0, packet.capacity())
+    val ducking = audioData(0.2f, ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putFloat(0.5f).array())
+    sink.onControl(ducking, 0, ducking.capacity())
+    sink.writePcm(packet, 0, packet.capacity())
+
+    assertEquals(listOf(0.2f), outputs[0].volumes)
+  }
+}
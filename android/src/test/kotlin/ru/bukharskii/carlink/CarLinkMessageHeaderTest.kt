@@ -0,0 +1,76 @@
+package ru.bukharskii.carlink
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertTrue
+
+/*
+ * Plain JVM tests for the dongle message header, no Android classes involved.
+ */
+
+internal class CarLinkMessageHeaderTest {
+
+  private fun ByteBuffer.putHeader(length: Int, type: Int, magic: Int = 0x55aa55aa): ByteBuffer {
+    val order = order()
+    order(ByteOrder.LITTLE_ENDIAN)
+    putInt(magic).putInt(length).putInt(type).putInt(type.inv())
+    order(order)
+    return this
+  }
+
+  @Test
+  fun readsHeaderFromItsOwnBuffer() {
+    val buffer = ByteBuffer.allocate(CarLinkMessageHeader.MESSAGE_LENGTH).putHeader(1024, 6)
+    buffer.flip()
+
+    val header = CarLinkMessageHeader(0, 0)
+    header.readFromBuffer(buffer)
+
+    assertEquals(1024, header.length)
+    assertEquals(6, header.type)
+    assertTrue(header.isVideoData)
+  }
+
+  @Test
+  fun readsConsecutiveHeadersInPlace() {
+    for (order in listOf(ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN)) {
+      // two frames in one transfer: header + 4 byte body, then an empty one
+      val buffer = ByteBuffer.allocateDirect(64).order(order)
+      buffer.putHeader(4, 8).putInt(0x01020304).putHeader(0, 170)
+      buffer.flip()
+
+      val header = CarLinkMessageHeader(0, 0)
+      header.readFromBuffer(buffer, 0)
+      assertEquals(4, header.length)
+      assertEquals(8, header.type)
+
+      header.readFromBuffer(buffer, CarLinkMessageHeader.MESSAGE_LENGTH + 4)
+      assertEquals(0, header.length)
+      assertEquals(170, header.type)
+
+      // neither position nor byte order were touched
+      assertEquals(0, buffer.position())
+      assertEquals(order, buffer.order())
+    }
+  }
+
+  @Test
+  fun rejectsBrokenHeaders() {
+    val header = CarLinkMessageHeader(0, 0)
+
+    val badMagic = ByteBuffer.allocate(32).putHeader(4, 8, magic = 0x12345678)
+    assertFailsWith<Exception> { header.readFromBuffer(badMagic, 0) }
+
+    val badCheck = ByteBuffer.allocate(32).putHeader(4, 8)
+    badCheck.order(ByteOrder.LITTLE_ENDIAN).putInt(12, 8)
+    assertFailsWith<HeaderBuildException> { header.readFromBuffer(badCheck, 0) }
+
+    // only part of a header left in the transfer
+    val truncated = ByteBuffer.allocate(32).putHeader(4, 8)
+    truncated.limit(20)
+    assertFailsWith<HeaderBuildException> { header.readFromBuffer(truncated, 8) }
+  }
+}
@@ -0,0 +1,177 @@
+package ru.bukharskii.carlink
+
+import java.util.Collections
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/*
+ * Plain JVM tests for the decoder feeder thread, against a fake codec: input buffer indexes
+ * and packets show up on their own threads, the feeder pairs them up the way
+ * H264Renderer fills MediaCodec input buffers from the ring.
+ */
+
+internal class CodecFeederTest {
+
+  private class FakeCodec {
+    val inputIndexes = ConcurrentLinkedQueue<Int>()
+    val packets = ConcurrentLinkedQueue<Int>()
+    val queued = Collections.synchronizedList(mutableListOf<Int>())
+    val drainThreads = Collections.synchronizedSet(mutableSetOf<Thread>())
+    val drains = AtomicInteger()
+    val concurrentDrains = AtomicInteger()
+    var maxConcurrentDrains = 0
+
+    fun drain() {
+      maxConcurrentDrains = maxOf(maxConcurrentDrains, concurrentDrains.incrementAndGet())
+      drains.incrementAndGet()
+      drainThreads.add(Thread.currentThread())
+      while (inputIndexes.isNotEmpty() && packets.isNotEmpty()) {
+        val index = inputIndexes.poll()
+        queued.add(packets.poll())
+        // the codec hands the buffer back once it consumed the packet
+        inputIndexes.add(index)
+      }
+      concurrentDrains.decrementAndGet()
+    }
+  }
+
+  private val threads = mutableListOf<Thread>()
+  private val threadFactory = ThreadFactory { r -> Thread(r, "feeder").also { threads.add(it) } }
+
+  private fun awaitCondition(condition: () -> Boolean) {
+    val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5)
+    while (!condition() && System.nanoTime() < deadline) Thread.sleep(1)
+    assertTrue(condition())
+  }
+
+  @Test
+  fun everyPacketIsFedOnceInOrderFromOneThread() {
+    val codec = FakeCodec()
+    val feeder = CodecFeeder(threadFactory, codec::drain)
+    feeder.start()
+
+    val count = 5000
+    val producer = Thread {
+      for (i in 0 until count) {
+        codec.packets.add(i)
+        feeder.signal()
+      }
+    }
+    val callbacks = Thread {
+      for (index in 0 until 4) {
+        codec.inputIndexes.add(index)
+        feeder.signal()
+        Thread.sleep(1)
+      }
+    }
+    producer.start()
+    callbacks.start()
+    producer.join()
+    callbacks.join()
+
+    awaitCondition { codec.queued.size == count }
+    feeder.stop()
+
+    assertEquals((0 until count).toList(), codec.queued.toList())
+    assertEquals(1, codec.maxConcurrentDrains)
+    assertEquals(setOf(threads[0]), codec.drainThreads.toSet())
+  }
+
+  @Test
+  fun signalsDuringAPassFoldIntoOneMore() {
+    val entered = CountDownLatch(1)
+    val release = CountDownLatch(1)
+    val drains = AtomicInteger()
+    val feeder = CodecFeeder(threadFactory) {
+      if (drains.incrementAndGet() == 1) {
+        entered.countDown()
+        release.await()
+      }
+    }
+    feeder.start()
+
+    feeder.signal()
+    assertTrue(entered.await(5, TimeUnit.SECONDS))
+    repeat(10) { feeder.signal() }
+    release.countDown()
+
+    awaitCondition { drains.get() == 2 }
+    Thread.sleep(50)
+    assertEquals(2, drains.get())
+    feeder.stop()
+  }
+
+  @Test
+  fun stopWaitsForASlowPassBeforeTheNextStart() {
+    val events = Collections.synchronizedList(mutableListOf<String>())
+    val entered = CountDownLatch(1)
+    val drains = AtomicInteger()
+    val feeder = CodecFeeder(threadFactory) {
+      val pass = drains.incrementAndGet()
+      events.add("begin $pass")
+      if (pass == 1) {
+        entered.countDown()
+        Thread.sleep(100)
+      }
+      events.add("end $pass")
+    }
+    feeder.start()
+
+    feeder.signal()
+    assertTrue(entered.await(5, TimeUnit.SECONDS))
+    feeder.stop()
+
+    // the codec would be stopped right here
+    assertEquals(listOf("begin 1", "end 1"), events.toList())
+    assertFalse(threads[0].isAlive)
+
+    feeder.start()
+    feeder.signal()
+    awaitCondition { events.size == 4 }
+    feeder.stop()
+
+    assertEquals(listOf("begin 1", "end 1", "begin 2", "end 2"), events.toList())
+  }
+
+  @Test
+  fun signalBeforeStartIsKept() {
+    val codec = FakeCodec()
+    val feeder = CodecFeeder(threadFactory, codec::drain)
+
+    codec.inputIndexes.add(0)
+    codec.packets.add(7)
+    feeder.signal()
+    feeder.start()
+
+    awaitCondition { codec.queued.size == 1 }
+    feeder.stop()
+  }
+
+  @Test
+  fun stopEndsTheThreadAndStartBringsANewOne() {
+    val codec = FakeCodec()
+    val feeder = CodecFeeder(threadFactory, codec::drain)
+
+    feeder.start()
+    feeder.stop()
+    threads[0].join(5000)
+    assertFalse(threads[0].isAlive)
+    assertFalse(feeder.isRunning)
+
+    feeder.start()
+    codec.inputIndexes.add(0)
+    codec.packets.add(1)
+    feeder.signal()
+
+    awaitCondition { codec.queued.size == 1 }
+    assertEquals(setOf(threads[1]), codec.drainThreads.toSet())
+    feeder.stop()
+  }
+}
@@ -0,0 +1,85 @@
+package ru.bukharskii.carlink
+
+import kotlin.test.Test
+import kotlin.test.assertEquals
+import kotlin.test.assertFailsWith
+import kotlin.test.assertFalse
+import kotlin.test.assertTrue
+
+/*
+ * Plain JVM tests for the codec input index queue, single threaded for the ring
+ * arithmetic and with one producer and one consumer thread for the handover.
+ */
+
+internal class IntRingQueueTest {
+
+  @Test
+  fun capacityRoundsUpToAPowerOfTwo() {
+    assertEquals(1, IntRingQueue(1).capacity)
+    assertEquals(64, IntRingQueue(64).capacity)
+    assertEquals(128, IntRingQueue(65).capacity)
+    assertFailsWith<IllegalArgumentException> { IntRingQueue(0) }
+  }
+
+  @Test
+  fun keepsOrderAcrossTheWrap() {
+    val queue = IntRingQueue(4)
+    var next = 0
+    var expected = 0
+
+    repeat(10) {
+      while (queue.offer(next)) next++
+      assertEquals(4, queue.size())
+      assertEquals(expected, queue.peek())
+      repeat(3) { assertEquals(expected++, queue.poll()) }
+    }
+
+    while (!queue.isEmpty) assertEquals(expected++, queue.poll())
+    assertEquals(next, expected)
+    assertEquals(IntRingQueue.EMPTY, queue.poll())
+    assertEquals(IntRingQueue.EMPTY, queue.peek())
+  }
+
+  @Test
+  fun fullQueueRejectsAndCounts() {
+    val queue = IntRingQueue(2)
+
+    assertTrue(queue.offer(1))
+    assertTrue(queue.offer(2))
+    assertFalse(queue.offer(3))
+
+    assertEquals(1L, queue.rejectedCount)
+    assertEquals(2, queue.maxSize)
+    assertEquals(1, queue.poll())
+    assertTrue(queue.offer(3))
+    assertFailsWith<IllegalArgumentException> { queue.offer(-1) }
+  }
+
+  @Test
+  fun oneProducerOneConsumerHandOverEverythingInOrder() {
+    val queue = IntRingQueue(8)
+    val count = 1_000_000
+
+    val producer = Thread {
+      var value = 0
+      while (value < count) {
+        if (queue.offer(value)) value++ else Thread.yield()
+      }
+    }
+    producer.start()
+
+    var expected = 0
+    while (expected < count) {
+      val value = queue.poll()
+      if (value == IntRingQueue.EMPTY) {
+        Thread.yield()
+        continue
+      }
+      assertEquals(expected++, value)
+    }
+    producer.join()
+
+    assertTrue(queue.isEmpty)
+    assertTrue(queue.maxSize <= 8)
+  }
+}
@@ -0,0 +1,68 @@
+package ru.bukharskii.carlink
+
+import java.util.concurrent.TimeUnit
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+/*
+ * Plain JVM tests for the stall check of the link watchdog, the check is driven with
+ * explicit timestamps instead of the timer thread.
+ */
+
+internal class LinkWatchdogTest {
+
+  private val stalls = mutableListOf<Long>()
+  private val watchdog = LinkWatchdog(null, null, 1000, 2000, 3000, { gapMs -> stalls.add(gapMs) }, null)
+
+  private fun checkAfter(ms: Long) = watchdog.check(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ms))
+
+  @Test
+  fun stallsOnlyOnceVideoStreamed() {
+    watchdog.onInbound(2)
+    checkAfter(10_000)
+    assertEquals(0, stalls.size)
+
+    watchdog.onInbound(6)
+    checkAfter(1_000)
+    assertEquals(0, stalls.size)
+    checkAfter(10_000)
+    checkAfter(11_000)
+    assertEquals(1, stalls.size)
+  }
+
+  @Test
+  fun unpluggedDisarms() {
+    watchdog.onInbound(6)
+    watchdog.onInbound(4)
+    checkAfter(60_000)
+    assertEquals(0, stalls.size)
+
+    // the next phone streams again
+    watchdog.onInbound(6)
+    checkAfter(10_000)
+    assertEquals(1, stalls.size)
+  }
+
+  @Test
+  fun frameRequestsStretchTheTimeout() {
+    watchdog.setFrameRequestIntervalMs(10_000)
+    watchdog.onInbound(6)
+
+    // a static screen answers every frame request at the latest
+    checkAfter(10_000)
+    checkAfter(25_000)
+    assertEquals(0, stalls.size)
+    checkAfter(31_000)
+    assertEquals(1, stalls.size)
+  }
+
+  @Test
+  fun stoppedFrameRequestsDisarm() {
+    watchdog.setFrameRequestIntervalMs(10_000)
+    watchdog.onInbound(6)
+    watchdog.setFrameRequestIntervalMs(0)
+
+    checkAfter(60_000)
+    assertEquals(0, stalls.size)
+  }
+}
@@ -0,0 +1,514 @@
+package ru.bukharskii.carlink
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import java.util.concurrent.atomic.AtomicReference
+import kotlin.test.Test
+import kotlin.test.assertContentEquals
+import kotlin.test.assertEquals
+import kotlin.test.assertFalse
+import kotlin.test.assertFailsWith
+import kotlin.test.assertNotNull
+import kotlin.test.assertNull
+import kotlin.test.assertTrue
+
+/*
+ * Plain JVM tests for the video ring buffer, no Android classes involved.
+ */
+
+internal class PacketRingByteBufferTest {
+
+  private fun packet(sequence: Int, length: Int): ByteArray {
+    val bytes = ByteArray(length)
+    ByteBuffer.wrap(bytes).putInt(sequence)
+    for (i in 4 until length) {
+      bytes[i] = (sequence + i).toByte()
+    }
+    return bytes
+  }
+
+  // returns the packet sequence number, fails if the payload was damaged
+  private fun verify(packet: ByteBuffer?): Int {
+    assertNotNull(packet)
+    val start = packet.position()
+    val sequence = packet.getInt(start)
+    for (i in 4 until packet.remaining()) {
+      if (packet.get(start + i) != (sequence + i).toByte()) {
+        throw AssertionError("packet $sequence corrupted at byte $i")
+      }
+    }
+    return sequence
+  }
+
+  // Annex-B access unit: start code, NAL header, sequence byte, filler without start codes
+  private fun nal(sequence: Int, type: Int, refIdc: Int, length: Int = 40): ByteArray {
+    val bytes = ByteArray(length) { 0x55 }
+    bytes[0] = 0
+    bytes[1] = 0
+    bytes[2] = 0
+    bytes[3] = 1
+    bytes[4] = ((refIdc shl 5) or type).toByte()
+    bytes[5] = sequence.toByte()
+    return bytes
+  }
+
+  private fun idr(sequence: Int) = nal(sequence, 5, 3)
+  private fun pFrame(sequence: Int) = nal(sequence, 1, 2)
+  private fun bFrame(sequence: Int) = nal(sequence, 1, 0)
+
+  private val sps = byteArrayOf(0, 0, 0, 1, 0x67, 0x64, 0x00, 0x28, 0x55)
+  private val pps = byteArrayOf(0, 0, 0, 1, 0x68, 0x55, 0x55)
+
+  // SPS + PPS + IDR slice in one packet, the way the phone sends keyframes
+  private fun keyframe(sequence: Int) = sps + pps + idr(sequence)
+
+  private fun fixed(policy: PacketRingByteBuffer.OverflowPolicy, mode: PacketRingByteBuffer.ConcurrencyMode =
+    PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER): PacketRingByteBuffer {
+    // 4 records of 40 + 20 bytes
+    val buffer = PacketRingByteBuffer(240, mode, PacketRingByteBuffer.Backing.HEAP, policy)
+    buffer.setProducerBlockTimeoutMillis(0)
+    return buffer
+  }
+
+  private fun write(buffer: PacketRingByteBuffer, bytes: ByteArray) = buffer.writePacket(bytes, 0, bytes.size)
+
+  private fun drainSequences(buffer: PacketRingByteBuffer): List<Int> {
+    val sequences = ArrayList<Int>()
+    while (true) {
+      val packet = buffer.acquirePacket() ?: break
+      // sequence byte of the slice, after the parameter sets of a keyframe
+      sequences.add(packet.get(packet.limit() - 35).toInt())
+      buffer.releasePacket()
+    }
+    return sequences
+  }
+
+  private fun readNext(buffer: PacketRingByteBuffer): Int {
+    val sequence = verify(buffer.acquirePacket())
+    buffer.releasePacket()
+    return sequence
+  }
+
+  @Test
+  fun readsPacketsInOrderAcrossWrap() {
+    for (mode in PacketRingByteBuffer.ConcurrencyMode.values()) {
+      for (backing in PacketRingByteBuffer.Backing.values()) {
+        val buffer = PacketRingByteBuffer(160, mode, backing)
+        var next = 0
+
+        for (round in 0 until 50) {
+          buffer.writePacket(packet(round * 2, 30), 0, 30)
+          buffer.writePacket(packet(round * 2 + 1, 20), 0, 20)
+
+          while (!buffer.isEmpty) {
+            assertEquals(next++, readNext(buffer), "mode $mode, backing $backing")
+          }
+        }
+
+        assertEquals(100, next)
+        assertEquals(0, buffer.availablePacketsToRead())
+        assertEquals(0L, buffer.droppedPacketCount)
+      }
+    }
+  }
+
+  @Test
+  fun synchronizedModeGrowsWhenFull() {
+    val buffer = PacketRingByteBuffer(64, PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED)
+
+    for (i in 0 until 20) {
+      buffer.writePacket(packet(i, 40), 0, 40)
+    }
+
+    assertEquals(20, buffer.availablePacketsToRead())
+    for (i in 0 until 20) {
+      assertEquals(i, readNext(buffer))
+    }
+    assertEquals(0L, buffer.droppedPacketCount)
+  }
+
+  @Test
+  fun singleProducerModeDropsInsteadOfGrowing() {
+    val buffer = PacketRingByteBuffer(128, PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER)
+
+    for (i in 0 until 10) {
+      buffer.writePacket(packet(i, 40), 0, 40)
+    }
+
+    // 3 records of 60 bytes don't fit in 128
+    assertEquals(2, buffer.availablePacketsToRead())
+    assertEquals(8L, buffer.droppedPacketCount)
+    assertEquals(0, readNext(buffer))
+    assertEquals(1, readNext(buffer))
+    assertTrue(buffer.isEmpty)
+  }
+
+  @Test
+  fun skipBytesAreNotReturned() {
+    val buffer = PacketRingByteBuffer(256)
+    val source = ByteArray(24)
+    source[20] = 7
+
+    buffer.directWriteToBuffer(24, 20, PacketRingByteBuffer.DirectWriteCallback { bytes, offset -> System.arraycopy(source, 0, bytes, offset, 24) })
+
+    val packet = buffer.acquirePacket()
+    assertNotNull(packet)
+    assertEquals(4, packet.remaining())
+    assertEquals(7.toByte(), packet.get(packet.position()))
+    buffer.releasePacket()
+  }
+
+  @Test
+  fun invalidSkipStillConsumesTheBody() {
+    val buffer = PacketRingByteBuffer(256)
+    var consumed = 0
+
+    // a short video message, the body must still be read off the stream
+    buffer.directWriteToBuffer(12, 20, PacketRingByteBuffer.ByteBufferWriteCallback { target ->
+      consumed += target.remaining()
+      target.position(target.limit())
+    })
+
+    assertEquals(12, consumed)
+    assertTrue(buffer.isEmpty)
+    assertEquals(1L, buffer.droppedPacketCount)
+    assertFailsWith<IllegalArgumentException> { buffer.writePacket(ByteArray(0), 0, -1) }
+  }
+
+  @Test
+  fun directBackingSupportsBothWriteCallbacksAndGrows() {
+    val buffer = PacketRingByteBuffer(64, PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED, PacketRingByteBuffer.Backing.DIRECT)
+
+    for (i in 0 until 10) {
+      val data = packet(i, 40)
+      if (i % 2 == 0) {
+        buffer.directWriteToBuffer(40, 0, PacketRingByteBuffer.ByteBufferWriteCallback { target ->
+          assertEquals(40, target.remaining())
+          target.put(data)
+        })
+      } else {
+        buffer.directWriteToBuffer(40, 0, PacketRingByteBuffer.DirectWriteCallback { bytes, offset ->
+          System.arraycopy(data, 0, bytes, offset, 40)
+        })
+      }
+    }
+
+    assertTrue(buffer.capacity > 64)
+    for (i in 0 until 10) {
+      val packet = buffer.acquirePacket()
+      assertNotNull(packet)
+      assertTrue(packet.isDirect)
+      assertEquals(i, verify(packet))
+      buffer.releasePacket()
+    }
+    assertTrue(buffer.isEmpty)
+  }
+
+  @Test
+  fun leaseIsReusedAndMustBeReleased() {
+    val buffer = PacketRingByteBuffer(256)
+    buffer.writePacket(packet(0, 16), 0, 16)
+    buffer.writePacket(packet(1, 16), 0, 16)
+
+    val first = buffer.acquirePacket()
+    assertEquals(0, verify(first))
+    assertFailsWith<IllegalStateException> { buffer.acquirePacket() }
+    buffer.releasePacket()
+
+    val second = buffer.acquirePacket()
+    assertTrue(first === second, "view should be reused")
+    assertEquals(1, verify(second))
+    buffer.releasePacket()
+
+    assertNull(buffer.acquirePacket())
+    assertEquals(0, buffer.availablePacketsToRead())
+  }
+
+  @Test
+  fun leaseCarriesTheArrivalTime() {
+    val buffer = PacketRingByteBuffer(64, PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED)
+    val before = System.nanoTime()
+    buffer.writePacket(packet(0, 16), 0, 16)
+    Thread.sleep(2)
+    buffer.writePacket(packet(1, 16), 0, 16)
+    // grows, the arrival times move with the records
+    buffer.writePacket(packet(2, 40), 0, 40)
+
+    val arrivals = ArrayList<Long>()
+    while (buffer.acquirePacket() != null) {
+      arrivals.add(buffer.leasedPacketArrivalNanos)
+      buffer.releasePacket()
+    }
+
+    assertEquals(3, arrivals.size)
+    assertTrue(arrivals[0] >= before)
+    assertTrue(arrivals[1] - arrivals[0] >= 2_000_000L)
+    assertTrue(arrivals[2] >= arrivals[1])
+  }
+
+  @Test
+  fun leasedPacketIsNotOverwrittenByWriter() {
+    val buffer = PacketRingByteBuffer(128, PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER)
+    buffer.writePacket(packet(0, 44), 0, 44)
+
+    val leased = buffer.acquirePacket()
+    // would reuse the space of the leased record if it had been freed on acquire
+    buffer.writePacket(packet(1, 44), 0, 44)
+    buffer.writePacket(packet(2, 44), 0, 44)
+
+    assertEquals(0, verify(leased))
+    assertEquals(1L, buffer.droppedPacketCount)
+    buffer.releasePacket()
+    assertEquals(1, readNext(buffer))
+  }
+
+  @Test
+  fun leaseSurvivesResize() {
+    val buffer = PacketRingByteBuffer(64, PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED)
+    buffer.writePacket(packet(0, 40), 0, 40)
+
+    val leased = buffer.acquirePacket()
+    for (i in 1 until 5) {
+      buffer.writePacket(packet(i, 40), 0, 40)
+    }
+
+    assertEquals(0, verify(leased))
+    buffer.releasePacket()
+    for (i in 1 until 5) {
+      assertEquals(i, readNext(buffer))
+    }
+    assertTrue(buffer.isEmpty)
+  }
+
+  @Test
+  fun growPolicyNeedsSynchronizedMode() {
+    assertFailsWith<IllegalArgumentException> {
+      PacketRingByteBuffer(64, PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER,
+        PacketRingByteBuffer.Backing.HEAP, PacketRingByteBuffer.OverflowPolicy.GROW)
+    }
+  }
+
+  @Test
+  fun dropUntilIdrDropsEverythingUntilTheNextKeyframe() {
+    val buffer = fixed(PacketRingByteBuffer.OverflowPolicy.DROP_UNTIL_IDR)
+    write(buffer, idr(0))
+    for (i in 1 until 5) write(buffer, pFrame(i))
+
+    // 4 was dropped, 5 fits again once the reader caught up but can't be decoded without 4
+    assertTrue(buffer.isAwaitingIdr)
+    assertEquals(listOf(0, 1, 2, 3), drainSequences(buffer))
+    write(buffer, pFrame(5))
+    write(buffer, bFrame(6))
+    write(buffer, idr(7))
+    write(buffer, pFrame(8))
+
+    assertEquals(listOf(7, 8), drainSequences(buffer))
+    assertEquals(3L, buffer.droppedAwaitingIdrCount)
+    assertEquals(1L, buffer.idrResyncCount)
+    assertEquals(3L, buffer.droppedPacketCount)
+  }
+
+  @Test
+  fun dropUntilIdrLetsAnIdrReplaceTheBacklog() {
+    for (mode in PacketRingByteBuffer.ConcurrencyMode.values()) {
+      val buffer = fixed(PacketRingByteBuffer.OverflowPolicy.DROP_UNTIL_IDR, mode)
+      // long enough that a wait for the reader would fail the test
+      buffer.setProducerBlockTimeoutMillis(5_000)
+      write(buffer, idr(0))
+      for (i in 1 until 4) write(buffer, pFrame(i))
+
+      // stalled decoder, nothing reads: the IDR goes in right away over the backlog
+      write(buffer, idr(4))
+      assertEquals(0L, buffer.producerBlockCount, "mode $mode")
+
+      assertEquals(listOf(4), drainSequences(buffer), "mode $mode")
+      assertFalse(buffer.isAwaitingIdr)
+      assertEquals(1L, buffer.backlogDiscardCount)
+      assertEquals(0L, buffer.droppedPacketCount)
+    }
+  }
+
+  @Test
+  fun dropUntilIdrKeepsWritingAfterTheReaderFellBehind() {
+    val buffer = fixed(PacketRingByteBuffer.OverflowPolicy.DROP_UNTIL_IDR,
+      PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER)
+    write(buffer, idr(0))
+    for (i in 1 until 4) write(buffer, pFrame(i))
+
+    // two keyframes replace the backlog before the reader comes back, it jumps to the second one
+    write(buffer, idr(4))
+    write(buffer, pFrame(5))
+    write(buffer, pFrame(6))
+    write(buffer, pFrame(7))
+    write(buffer, idr(8))
+
+    assertEquals(listOf(8), drainSequences(buffer))
+    assertEquals(2L, buffer.backlogDiscardCount)
+    assertEquals(8L, buffer.discardedPacketCount)
+    assertEquals(0L, buffer.producerBlockCount)
+    assertTrue(buffer.isEmpty)
+  }
+
+  @Test
+  fun dropNonReferenceKeepsTheReferenceChain() {
+    val buffer = fixed(PacketRingByteBuffer.OverflowPolicy.DROP_NON_REFERENCE)
+    write(buffer, idr(0))
+    write(buffer, bFrame(1))
+    write(buffer, pFrame(2))
+    write(buffer, bFrame(3))
+
+    // full: a non-reference frame is simply dropped
+    write(buffer, bFrame(4))
+    assertEquals(1L, buffer.droppedNonReferenceCount)
+    assertFalse(buffer.isAwaitingIdr)
+
+    // a reference frame skips the queued B-frames but still doesn't fit, the chain is broken
+    write(buffer, pFrame(5))
+    assertEquals(2L, buffer.skippedNonReferenceCount)
+    assertTrue(buffer.isAwaitingIdr)
+
+    assertEquals(listOf(0, 2), drainSequences(buffer))
+    write(buffer, pFrame(6))
+    write(buffer, idr(7))
+    assertEquals(listOf(7), drainSequences(buffer))
+    assertEquals(3L, buffer.droppedPacketCount)
+  }
+
+  @Test
+  fun blockProducerWaitsForTheReader() {
+    val buffer = fixed(PacketRingByteBuffer.OverflowPolicy.BLOCK_PRODUCER, PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED)
+    buffer.setProducerBlockTimeoutMillis(5_000)
+    for (i in 0 until 4) write(buffer, pFrame(i))
+
+    val reader = Thread {
+      Thread.sleep(50)
+      buffer.acquirePacket()
+      buffer.releasePacket()
+    }
+    reader.start()
+    write(buffer, pFrame(4))
+    reader.join()
+
+    assertEquals(listOf(1, 2, 3, 4), drainSequences(buffer))
+    assertEquals(1L, buffer.producerBlockCount)
+    assertEquals(0L, buffer.producerBlockTimeoutCount)
+    assertEquals(0L, buffer.droppedPacketCount)
+  }
+
+  @Test
+  fun nalIndexTracksKeyframesAndReferences() {
+    for (mode in PacketRingByteBuffer.ConcurrencyMode.values()) {
+      // SYNCHRONIZED has to grow from 64 bytes, the index must follow the moved records
+      val buffer = PacketRingByteBuffer(if (mode == PacketRingByteBuffer.ConcurrencyMode.SYNCHRONIZED) 64 else 512, mode)
+      assertNull(buffer.codecConfig)
+      assertFalse(buffer.hasQueuedIdr())
+
+      write(buffer, keyframe(0))
+      write(buffer, pFrame(1))
+      write(buffer, bFrame(2))
+      write(buffer, keyframe(3))
+      write(buffer, pFrame(4))
+
+      assertTrue(buffer.hasQueuedIdr(), "mode $mode")
+      assertEquals(4L, buffer.pendingReferenceFrameCount)
+      assertContentEquals(sps + pps, buffer.codecConfig)
+
+      assertEquals(3L, buffer.skipToLatestIdr())
+      assertEquals(2L, buffer.pendingReferenceFrameCount)
+      assertEquals(0L, buffer.skipToLatestIdr())
+
+      assertNotNull(buffer.acquirePacket())
+      assertEquals(NalUnitClassifier.SPS or NalUnitClassifier.PPS or NalUnitClassifier.IDR or NalUnitClassifier.REFERENCE,
+        buffer.leasedPacketFlags)
+      buffer.releasePacket()
+      assertEquals(listOf(4), drainSequences(buffer))
+      assertEquals(0L, buffer.pendingReferenceFrameCount)
+      assertFalse(buffer.hasQueuedIdr())
+
+      // the parameter sets outlive the packets they came with
+      assertContentEquals(sps + pps, buffer.codecConfig)
+    }
+  }
+
+  @Test
+  fun readerCanSkipQueuedNonReferenceFrames() {
+    for (mode in PacketRingByteBuffer.ConcurrencyMode.values()) {
+      val buffer = PacketRingByteBuffer(512, mode)
+      assertEquals(-1L, buffer.oldestPacketArrivalNanos)
+
+      write(buffer, pFrame(0))
+      val oldest = buffer.oldestPacketArrivalNanos
+      write(buffer, bFrame(1))
+      write(buffer, pFrame(2))
+      write(buffer, bFrame(3))
+
+      assertNotNull(buffer.acquirePacket())
+      // nothing is touched while a packet is leased
+      assertEquals(0L, buffer.skipQueuedNonReference())
+      assertEquals(oldest, buffer.oldestPacketArrivalNanos)
+      buffer.releasePacket()
+
+      assertEquals(2L, buffer.skipQueuedNonReference(), "mode $mode")
+      assertEquals(0L, buffer.skipQueuedNonReference())
+      assertEquals(listOf(2), drainSequences(buffer))
+      assertEquals(-1L, buffer.oldestPacketArrivalNanos)
+      // reader-side skips are the caller's to count
+      assertEquals(0L, buffer.skippedNonReferenceCount)
+    }
+  }
+
+  @Test
+  fun singleProducerSingleConsumerStress() {
+    val buffer = PacketRingByteBuffer(64 * 1024, PacketRingByteBuffer.ConcurrencyMode.SINGLE_PRODUCER_SINGLE_CONSUMER,
+      PacketRingByteBuffer.Backing.DIRECT)
+    val packets = 200_000
+    val failure = AtomicReference<Throwable>()
+    val producerDone = AtomicBoolean(false)
+
+    val producer = Thread {
+      for (i in 0 until packets) {
+        if (failure.get() != null) break
+
+        // mix of tiny P-frame sized and large IDR sized packets to force frequent wraps
+        val length = if (i % 97 == 0) 9000 else 8 + (i * 31) % 700
+        val data = packet(i, length)
+        buffer.directWriteToBuffer(length, 0, PacketRingByteBuffer.ByteBufferWriteCallback { target -> target.put(data) })
+      }
+      producerDone.set(true)
+    }
+
+    var received = 0
+    val consumer = Thread {
+      try {
+        var last = -1
+        val deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60)
+        while (last < packets - 1) {
+          if (System.nanoTime() > deadline) throw AssertionError("consumer timed out after $received packets")
+
+          if (buffer.isEmpty) {
+            if (producerDone.get() && buffer.isEmpty) break
+            Thread.onSpinWait()
+            continue
+          }
+
+          val sequence = readNext(buffer)
+          assertTrue(sequence > last, "packet $sequence after $last")
+          last = sequence
+          received++
+        }
+      } catch (t: Throwable) {
+        failure.set(t)
+      }
+    }
+
+    consumer.start()
+    producer.start()
+    producer.join()
+    consumer.join()
+
+    failure.get()?.let { throw it }
+    assertEquals(packets.toLong(), received + buffer.droppedPacketCount)
+    assertTrue(buffer.isEmpty)
+  }
+}
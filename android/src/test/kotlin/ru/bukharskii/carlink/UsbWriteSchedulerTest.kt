@@ -0,0 +1,145 @@
+package ru.bukharskii.carlink
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.util.concurrent.Executor
+import kotlin.test.Test
+import kotlin.test.assertEquals
+
+/*
+ * Plain JVM tests for the outbound write queues, the usbOut executor is run by hand
+ * so writes pile up the way they do behind a slow transfer.
+ */
+
+internal class UsbWriteSchedulerTest {
+
+  private class ManualExecutor : Executor {
+    val tasks = ArrayDeque<Runnable>()
+    override fun execute(command: Runnable) {
+      tasks.addLast(command)
+    }
+    fun runAll() {
+      while (tasks.isNotEmpty()) tasks.removeFirst().run()
+    }
+  }
+
+  private class RecordingTransport : UsbWriteScheduler.Transport {
+    val types = mutableListOf<Int>()
+    val messages = mutableListOf<ByteArray>()
+    override fun write(data: ByteArray, offset: Int, length: Int, timeoutMs: Int): Int {
+      types.add(ByteBuffer.wrap(data, offset + 8, 4).order(ByteOrder.LITTLE_ENDIAN).int)
+      messages.add(data.copyOfRange(offset, offset + length))
+      return length
+    }
+  }
+
+  private fun message(type: Int, body: ByteArray = ByteArray(0)): ByteArray {
+    val buffer = ByteBuffer.allocate(CarLinkMessageHeader.MESSAGE_LENGTH + body.size).order(ByteOrder.LITTLE_ENDIAN)
+    buffer.putInt(0x55aa55aa).putInt(body.size).putInt(type).putInt(type.inv()).put(body)
+    return buffer.array()
+  }
+
+  private fun touch(action: Int, x: Int): ByteArray {
+    val body = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN).putInt(action).putInt(x).putInt(0).putInt(0)
+    return message(0x05, body.array())
+  }
+
+  private fun multiTouch(vararg pointers: Pair<Int, Int>): ByteArray {
+    val body = ByteBuffer.allocate(16 * pointers.size).order(ByteOrder.LITTLE_ENDIAN)
+    for ((id, action) in pointers) {
+      body.putFloat(0.5f).putFloat(0.5f).putInt(action).putInt(id)
+    }
+    return message(0x17, body.array())
+  }
+
+  @Test
+  fun classifiesByMessageType() {
+    assertEquals(UsbWriteScheduler.Priority.TOUCH, UsbWriteScheduler.classify(touch(14, 0), 0, 32))
+    assertEquals(UsbWriteScheduler.Priority.AUDIO, UsbWriteScheduler.classify(message(0x07, ByteArray(12)), 0, 28))
+    assertEquals(UsbWriteScheduler.Priority.CONTROL, UsbWriteScheduler.classify(message(0xaa), 0, 16))
+    assertEquals(UsbWriteScheduler.Priority.BULK, UsbWriteScheduler.classify(message(0x99, ByteArray(8)), 0, 24))
+
+    val large = message(0x08, ByteArray(UsbWriteScheduler.BULK_THRESHOLD))
+    assertEquals(UsbWriteScheduler.Priority.BULK, UsbWriteScheduler.classify(large, 0, large.size))
+  }
+
+  @Test
+  fun touchGoesAheadOfQueuedUploadsAndControl() {
+    val executor = ManualExecutor()
+    val scheduler = UsbWriteScheduler(executor)
+    val transport = RecordingTransport()
+
+    for (data in listOf(message(0x99, ByteArray(64)), message(0xaa), message(0x07, ByteArray(12)), touch(14, 1))) {
+      scheduler.submit(transport, data, 0, data.size, 1000) { }
+    }
+    assertEquals(1, scheduler.getQueueDepth(UsbWriteScheduler.Priority.TOUCH))
+
+    executor.runAll()
+
+    assertEquals(listOf(0x05, 0x07, 0xaa, 0x99), transport.types)
+    assertEquals(0, scheduler.getQueueDepth(UsbWriteScheduler.Priority.BULK))
+  }
+
+  @Test
+  fun queuedTouchMovesCoalesce() {
+    val executor = ManualExecutor()
+    val scheduler = UsbWriteScheduler(executor)
+    val transport = RecordingTransport()
+    val completed = mutableListOf<Int>()
+
+    for (data in listOf(touch(14, 0), touch(15, 1), touch(15, 2), touch(15, 3), touch(16, 3))) {
+      scheduler.submit(transport, data, 0, data.size, 1000) { completed.add(it) }
+    }
+
+    // the superseded moves complete right away
+    assertEquals(2, completed.size)
+
+    executor.runAll()
+
+    assertEquals(3, transport.messages.size)
+    // down, the latest move, up
+    val x = transport.messages.map { ByteBuffer.wrap(it, 20, 4).order(ByteOrder.LITTLE_ENDIAN).int }
+    assertEquals(listOf(0, 3, 3), x)
+    assertEquals(5, completed.size)
+    assertEquals(2, scheduler.getCoalesced(UsbWriteScheduler.Priority.TOUCH))
+  }
+
+  @Test
+  fun multiTouchMovesCoalesceOnlyForTheSamePointers() {
+    val executor = ManualExecutor()
+    val scheduler = UsbWriteScheduler(executor)
+    val transport = RecordingTransport()
+
+    val writes = listOf(
+      multiTouch(0 to 2, 1 to 2),
+      multiTouch(0 to 2, 1 to 2),
+      multiTouch(0 to 2, 2 to 2),
+      multiTouch(0 to 2, 2 to 0),
+      multiTouch(0 to 2, 2 to 2),
+    )
+    for (data in writes) {
+      scheduler.submit(transport, data, 0, data.size, 1000) { }
+    }
+
+    executor.runAll()
+
+    // only the second joins the first; different pointers and the lift stay
+    assertEquals(4, transport.messages.size)
+    assertEquals(1, scheduler.getCoalesced(UsbWriteScheduler.Priority.TOUCH))
+  }
+
+  @Test
+  fun writesToOtherEndpointsDontCoalesce() {
+    val executor = ManualExecutor()
+    val scheduler = UsbWriteScheduler(executor)
+    val first = RecordingTransport()
+    val second = RecordingTransport()
+
+    scheduler.submit(first, touch(15, 1), 0, 32, 1000) { }
+    scheduler.submit(second, touch(15, 2), 0, 32, 1000) { }
+    executor.runAll()
+
+    assertEquals(1, first.messages.size)
+    assertEquals(1, second.messages.size)
+  }
+}
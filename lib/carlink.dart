@@ -36,7 +36,7 @@ class CarlinkMediaInfo {
 
 class Carlink {
   Timer? _pairTimeout;
-  Timer? _frameInterval;
+  bool _frameRequestsStarted = false;
 
   Dongle? _dongleDriver;
 
@@ -175,13 +175,14 @@ class Carlink {
     return _dongleDriver!.send(SendCommand(action));
   }
 
-  Future<bool> sendTouch(TouchAction type, double x, double y) {
+  // touch streams don't wait for each transfer, true once queued
+  Future<bool> sendTouch(TouchAction type, double x, double y) async {
     return _dongleDriver!
-        .send(SendTouch(type, x / _config.width, y / _config.height));
+        .post(SendTouch(type, x / _config.width, y / _config.height));
   }
 
-  Future<bool> sendMultiTouch(List<TouchItem> touches) {
-    return _dongleDriver!.send(SendMultiTouch(touches));
+  Future<bool> sendMultiTouch(List<TouchItem> touches) async {
+    return _dongleDriver!.post(SendMultiTouch(touches));
   }
 
   Future<bool> sendMessage(SendableMessage message) {
@@ -204,10 +205,9 @@ class Carlink {
       final phoneTypeConfig = _config.phoneConfig[message.phoneType];
       final interval = phoneTypeConfig?["frameInterval"];
       if (interval != null) {
-        _frameInterval =
-            Timer.periodic(Duration(milliseconds: interval), (timer) async {
-          await _dongleDriver?.send(SendCommand(CommandMapping.frame));
-        });
+        // timed natively, the cadence shouldn't depend on the event loop
+        _frameRequestsStarted = true;
+        await _dongleDriver?.startFrameRequests(interval);
       }
       _setState(CarlinkState.deviceConnected);
     }
@@ -249,11 +249,13 @@ class Carlink {
       switch (message.command) {
         case AudioCommand.AudioSiriStart:
         case AudioCommand.AudioPhonecallStart:
-//            mic.start()
+          if (_config.micType == 'os') {
+            _dongleDriver?.startMicrophone();
+          }
           break;
         case AudioCommand.AudioSiriStop:
         case AudioCommand.AudioPhonecallStop:
-//            mic.stop()
+          _dongleDriver?.stopMicrophone();
           break;
 
         default:
@@ -276,8 +278,10 @@ class Carlink {
   }
 
   _clearFrameInterval() {
-    _frameInterval?.cancel();
-    _frameInterval = null;
+    if (_frameRequestsStarted) {
+      _frameRequestsStarted = false;
+      _dongleDriver?.stopFrameRequests();
+    }
   }
 
   ///////////////
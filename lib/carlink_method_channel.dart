@@ -10,25 +10,62 @@ class MethodChannelCarlink extends CarlinkPlatform {
   @visibleForTesting
   final methodChannel = const MethodChannel('carlink');
 
+  /// Batches of reading loop messages, each [int32 type][int32 length][body]
+  /// little endian, length -1 for a message without body.
+  @visibleForTesting
+  final messageChannel =
+      const BasicMessageChannel<ByteData?>('carlink/messages', BinaryCodec());
+
+  /// Serialised messages for the write queue, sent without waiting for the
+  /// USB transfer; see [openWriteQueue].
+  @visibleForTesting
+  final writeChannel =
+      const BasicMessageChannel<ByteData?>('carlink/writes', BinaryCodec());
+
   Function(String)? _logHandler;
   Function(int, Uint8List?)? _readingLoopMessageHandler;
   Function(String)? _readingLoopErrorHandler;
+  Function(Map<String, dynamic>)? _writeReportHandler;
 
   MethodChannelCarlink() {
     methodChannel.setMethodCallHandler((call) async {
       if (call.method == "onLogMessage") {
         _logHandler?.call(call.arguments);
-      } else if (call.method == "onReadingLoopMessage") {
-        final type = call.arguments["type"];
-        final data = Uint8List.fromList(call.arguments["data"]);
-
-        if (_readingLoopMessageHandler != null) {
-          _readingLoopMessageHandler!(type, data);
-        }
       } else if (call.method == "onReadingLoopError") {
         _readingLoopErrorHandler?.call(call.arguments);
+      } else if (call.method == "onWriteReport") {
+        _writeReportHandler
+            ?.call((call.arguments as Map<Object?, Object?>).cast<String, dynamic>());
       }
     });
+
+    // the reply lets the native side reuse the message buffer
+    messageChannel.setMessageHandler((message) async {
+      if (message != null) {
+        _onReadingLoopMessages(message);
+      }
+      return null;
+    });
+  }
+
+  // a batch of one or more frames, in the order they were read
+  void _onReadingLoopMessages(ByteData batch) {
+    var offset = 0;
+
+    while (offset + 8 <= batch.lengthInBytes) {
+      final type = batch.getInt32(offset, Endian.little);
+      final length = batch.getInt32(offset + 4, Endian.little);
+      offset += 8;
+
+      // copied out, the readable messages expect the body to own its whole buffer
+      final data = length < 0
+          ? null
+          : Uint8List.fromList(
+              batch.buffer.asUint8List(batch.offsetInBytes + offset, length));
+      offset += length < 0 ? 0 : length;
+
+      _readingLoopMessageHandler?.call(type, data);
+    }
   }
 
   setLogHandler(Function(String)? logHandler) {
@@ -41,6 +78,11 @@ class MethodChannelCarlink extends CarlinkPlatform {
     int timeout, {
     required Function(int, Uint8List?) onMessage,
     required Function(String) onError,
+    int? transferCount,
+    int? transferSize,
+    int? batchMaxBytes,
+    int? batchDelayMicros,
+    bool? nativeAudio,
   }) async {
     assert(endpoint.direction == UsbEndpoint.DIRECTION_IN,
         'Endpoint\'s direction should be in');
@@ -51,6 +93,11 @@ class MethodChannelCarlink extends CarlinkPlatform {
     return await methodChannel.invokeMethod('startReadingLoop', {
       'endpoint': endpoint.toMap(),
       'timeout': timeout,
+      'transferCount': transferCount,
+      'transferSize': transferSize,
+      'batchMaxBytes': batchMaxBytes,
+      'batchDelayMicros': batchDelayMicros,
+      'nativeAudio': nativeAudio,
     });
   }
 
@@ -59,6 +106,31 @@ class MethodChannelCarlink extends CarlinkPlatform {
     await methodChannel.invokeMethod<int>('stopReadingLoop');
   }
 
+  /// Microphone frames are captured and sent to [endpoint] natively,
+  /// nothing crosses the channel until [stopMicUplink].
+  @override
+  Future<void> startMicUplink(
+    UsbEndpoint endpoint,
+    int timeout, {
+    int? decodeType,
+    int? audioType,
+  }) async {
+    assert(endpoint.direction == UsbEndpoint.DIRECTION_OUT,
+        'Endpoint\'s direction should be out');
+
+    await methodChannel.invokeMethod('startMicUplink', {
+      'endpoint': endpoint.toMap(),
+      'timeout': timeout,
+      'decodeType': decodeType,
+      'audioType': audioType,
+    });
+  }
+
+  @override
+  Future<void> stopMicUplink() async {
+    await methodChannel.invokeMethod('stopMicUplink');
+  }
+
   @override
   Future<Map<String, dynamic>> getDisplayMetrics() async {
     final metrics = await methodChannel.invokeMethod<Map<Object?, Object?>>('getDisplayMetrics');
@@ -190,6 +262,89 @@ class MethodChannelCarlink extends CarlinkPlatform {
     return Uint8List.fromList(data.cast<int>());
   }
 
+  /// HeartBeat is sent to [endpoint] natively every [heartbeatIntervalMs];
+  /// once video streams, a read loop that receives nothing for
+  /// [stallTimeoutMs] is failed right away.
+  @override
+  Future<void> startLinkWatchdog(
+    UsbEndpoint endpoint,
+    int timeout, {
+    int? heartbeatIntervalMs,
+    int? stallTimeoutMs,
+  }) async {
+    assert(endpoint.direction == UsbEndpoint.DIRECTION_OUT,
+        'Endpoint\'s direction should be out');
+
+    await methodChannel.invokeMethod('startLinkWatchdog', {
+      'endpoint': endpoint.toMap(),
+      'timeout': timeout,
+      'heartbeatIntervalMs': heartbeatIntervalMs,
+      'stallTimeoutMs': stallTimeoutMs,
+    });
+  }
+
+  @override
+  Future<void> stopLinkWatchdog() async {
+    await methodChannel.invokeMethod('stopLinkWatchdog');
+  }
+
+  /// Heartbeat round trips and inbound gaps, null without a watchdog.
+  @override
+  Future<Map<String, dynamic>?> getLinkStats() async {
+    final stats =
+        await methodChannel.invokeMethod<Map<Object?, Object?>>('getLinkStats');
+    return stats?.cast<String, dynamic>();
+  }
+
+  /// Frame requests are sent to [endpoint] natively about every
+  /// [intervalMs], faster while the decoder waits for frames and slower
+  /// while it falls behind, until [stopFrameRequests].
+  @override
+  Future<void> startFrameRequests(
+      UsbEndpoint endpoint, int timeout, int intervalMs) async {
+    assert(endpoint.direction == UsbEndpoint.DIRECTION_OUT,
+        'Endpoint\'s direction should be out');
+
+    await methodChannel.invokeMethod('startFrameRequests', {
+      'endpoint': endpoint.toMap(),
+      'timeout': timeout,
+      'intervalMs': intervalMs,
+    });
+  }
+
+  @override
+  Future<void> stopFrameRequests() async {
+    await methodChannel.invokeMethod('stopFrameRequests');
+  }
+
+  /// Writes enqueued with [enqueueBulkTransferOut] go to [endpoint], their
+  /// results are summed up in [onReport] about once a second: written,
+  /// bytes, failed, lastError and intervalMs.
+  @override
+  Future<void> openWriteQueue(
+    UsbEndpoint endpoint,
+    int timeout, {
+    required Function(Map<String, dynamic>) onReport,
+  }) async {
+    assert(endpoint.direction == UsbEndpoint.DIRECTION_OUT,
+        'Endpoint\'s direction should be out');
+
+    _writeReportHandler = onReport;
+
+    await methodChannel.invokeMethod('openWriteQueue', {
+      'endpoint': endpoint.toMap(),
+      'timeout': timeout,
+    });
+  }
+
+  /// Queues [data] for the write queue's endpoint and returns without
+  /// waiting for the transfer.
+  @override
+  void enqueueBulkTransferOut(Uint8List data) {
+    writeChannel.send(
+        data.buffer.asByteData(data.offsetInBytes, data.lengthInBytes));
+  }
+
   @override
   Future<int> bulkTransferOut(
       UsbEndpoint endpoint, Uint8List data, int timeout) async {
@@ -36,6 +36,11 @@ abstract class CarlinkPlatform extends PlatformInterface {
     int timeout, {
     required Function(int, Uint8List?) onMessage,
     required Function(String) onError,
+    int? transferCount,
+    int? transferSize,
+    int? batchMaxBytes,
+    int? batchDelayMicros,
+    bool? nativeAudio,
   }) async {
     throw UnimplementedError('platformVersion() has not been implemented.');
   }
@@ -44,6 +49,19 @@ abstract class CarlinkPlatform extends PlatformInterface {
     throw UnimplementedError('platformVersion() has not been implemented.');
   }
 
+  Future<void> startMicUplink(
+    UsbEndpoint endpoint,
+    int timeout, {
+    int? decodeType,
+    int? audioType,
+  }) async {
+    throw UnimplementedError('startMicUplink() has not been implemented.');
+  }
+
+  Future<void> stopMicUplink() async {
+    throw UnimplementedError('stopMicUplink() has not been implemented.');
+  }
+
   Future<Map<String, dynamic>> getDisplayMetrics() async {
     throw UnimplementedError('getDisplayMetrics() has not been implemented.');
   }
@@ -123,6 +141,44 @@ abstract class CarlinkPlatform extends PlatformInterface {
     throw UnimplementedError('platformVersion() has not been implemented.');
   }
 
+  Future<void> startLinkWatchdog(
+    UsbEndpoint endpoint,
+    int timeout, {
+    int? heartbeatIntervalMs,
+    int? stallTimeoutMs,
+  }) async {
+    throw UnimplementedError('startLinkWatchdog() has not been implemented.');
+  }
+
+  Future<void> stopLinkWatchdog() async {
+    throw UnimplementedError('stopLinkWatchdog() has not been implemented.');
+  }
+
+  Future<Map<String, dynamic>?> getLinkStats() async {
+    throw UnimplementedError('getLinkStats() has not been implemented.');
+  }
+
+  Future<void> startFrameRequests(
+      UsbEndpoint endpoint, int timeout, int intervalMs) async {
+    throw UnimplementedError('startFrameRequests() has not been implemented.');
+  }
+
+  Future<void> stopFrameRequests() async {
+    throw UnimplementedError('stopFrameRequests() has not been implemented.');
+  }
+
+  Future<void> openWriteQueue(
+    UsbEndpoint endpoint,
+    int timeout, {
+    required Function(Map<String, dynamic>) onReport,
+  }) async {
+    throw UnimplementedError('openWriteQueue() has not been implemented.');
+  }
+
+  void enqueueBulkTransferOut(Uint8List data) {
+    throw UnimplementedError('enqueueBulkTransferOut() has not been implemented.');
+  }
+
   Future<int> bulkTransferOut(
       UsbEndpoint endpoint, Uint8List data, int timeout) async {
     throw UnimplementedError('platformVersion() has not been implemented.');
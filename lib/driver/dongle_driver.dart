@@ -1,5 +1,3 @@
-import 'dart:async';
-
 import '../common.dart';
 
 import 'readable.dart';
@@ -14,7 +12,8 @@ class Dongle {
 
   final Function(String) _logHandler;
 
-  Timer? _heartBeat;
+  bool _heartBeatRunning = false;
+  bool _writeQueueOpen = false;
 
   late final int _readTimeout;
   late final int _writeTimeout;
@@ -65,59 +64,114 @@ class Dongle {
       await send(message);
     }
 
-    _heartBeat?.cancel();
+    await _usbDevice.openWriteQueue(
+        onReport: _onWriteReport, timeout: _writeTimeout);
+    _writeQueueOpen = true;
+
+    // sent natively so a busy UI isolate can't delay it; the same watchdog
+    // fails the read loop when nothing arrives while streaming
+    await _usbDevice.startLinkWatchdog(timeout: _writeTimeout);
+    _heartBeatRunning = true;
     _logHandler('Heartbeat started (every 2s)');
-    _heartBeat = Timer.periodic(const Duration(seconds: 2), (timer) async {
-      await send(HeartBeat());
-    });
 
     await _readLoop();
   }
 
   close() async {
-    if (_heartBeat != null) {
-      _logHandler('Heartbeat stopped');
-      _heartBeat?.cancel();
-      _heartBeat = null;
+    if (_heartBeatRunning) {
+      _heartBeatRunning = false;
+      try {
+        _logHandler('Heartbeat stopped, link: ${await _usbDevice.getLinkStats()}');
+        await _usbDevice.stopLinkWatchdog();
+      } catch (e) {
+        _logHandler("heartbeat error $e");
+      }
     }
 
     _errorHandler = null;
     _messageHandler = null;
+    _writeQueueOpen = false;
 
+    await stopMicrophone();
+    await stopFrameRequests();
     await _usbDevice.stopReadingLoop();
     await _usbDevice.close();
   }
 
-  Future<bool> send(SendableMessage message) async {
+  // CommandMapping.frame every intervalMs, sent natively
+  Future<void> startFrameRequests(int intervalMs) async {
+    try {
+      await _usbDevice.startFrameRequests(intervalMs, timeout: _writeTimeout);
+    } catch (e) {
+      _logHandler("frame requests error $e");
+    }
+  }
+
+  Future<void> stopFrameRequests() async {
+    try {
+      await _usbDevice.stopFrameRequests();
+    } catch (e) {
+      _logHandler("frame requests error $e");
+    }
+  }
+
+  // host microphone for Siri and calls, sent natively without going
+  // through send()
+  Future<void> startMicrophone() async {
+    try {
+      await _usbDevice.startMicUplink(timeout: _writeTimeout);
+      _logHandler('Microphone uplink started');
+    } catch (e) {
+      _logHandler("microphone error $e");
+    }
+  }
+
+  Future<void> stopMicrophone() async {
+    try {
+      await _usbDevice.stopMicUplink();
+    } catch (e) {
+      _logHandler("microphone error $e");
+    }
+  }
+
+  // Queued without waiting for the transfer, for touch streams and the
+  // heartbeat. Failures come back in the next write report.
+  bool post(SendableMessage message) {
+    // until start() has opened the queue
+    if (!_writeQueueOpen) {
+      send(message);
+      return true;
+    }
+
     try {
       final data = message.serialise();
+      _logSend(message);
+      _usbDevice.post(data);
+      return true;
+    } catch (e) {
+      _logHandler("send error $e");
+      _errorHandler?.call(error: e.toString());
+    }
 
-      // Skip logging individual heartbeats to reduce noise
-      if (message.type != MessageType.HeartBeat) {
-        if (message is SendCommand) {
-          // Special logging for audio/mic configuration commands
-          String commandDescription = '';
-          switch (message.value) {
-            case CommandMapping.mic:
-              commandDescription = 'MicSource: os (host app microphone)';
-              break;
-            case CommandMapping.boxMic:
-              commandDescription = 'MicSource: box (dongle built-in mic)';
-              break;
-            case CommandMapping.audioTransferOn:
-              commandDescription = 'AudioTransfer: ON (direct Bluetooth to car)';
-              break;
-            case CommandMapping.audioTransferOff:
-              commandDescription = 'AudioTransfer: OFF (through dongle)';
-              break;
-            default:
-              commandDescription = message.value.name;
-          }
-          _logHandler('[SEND] Command 0x${message.value.id.toRadixString(16).padLeft(2, '0').toUpperCase()} ($commandDescription)');
-        } else {
-          _logHandler('[SEND] ${message.type.name}');
-        }
-      }
+    return false;
+  }
+
+  _onWriteReport(Map<String, dynamic> report) {
+    final failed = report['failed'] as int;
+    _logHandler(
+        '[SEND] queued writes: ${report['written']} (${report['bytes']} bytes) in ${report['intervalMs']}ms, failed: $failed');
+
+    if (failed > 0) {
+      _errorHandler?.call(
+          error:
+              'USBWriteError $failed queued writes failed, lastError=${report['lastError']}');
+    }
+  }
+
+  Future<bool> send(SendableMessage message) async {
+    try {
+      final data = message.serialise();
+      _logSend(message);
 
       final length = await _usbDevice.write(data, timeout: _writeTimeout);
 
@@ -132,6 +186,35 @@ class Dongle {
     return false;
   }
 
+  _logSend(SendableMessage message) {
+    // Skip logging individual heartbeats to reduce noise
+    if (message.type != MessageType.HeartBeat) {
+      if (message is SendCommand) {
+        // Special logging for audio/mic configuration commands
+        String commandDescription = '';
+        switch (message.value) {
+          case CommandMapping.mic:
+            commandDescription = 'MicSource: os (host app microphone)';
+            break;
+          case CommandMapping.boxMic:
+            commandDescription = 'MicSource: box (dongle built-in mic)';
+            break;
+          case CommandMapping.audioTransferOn:
+            commandDescription = 'AudioTransfer: ON (direct Bluetooth to car)';
+            break;
+          case CommandMapping.audioTransferOff:
+            commandDescription = 'AudioTransfer: OFF (through dongle)';
+            break;
+          default:
+            commandDescription = message.value.name;
+        }
+        _logHandler('[SEND] Command 0x${message.value.id.toRadixString(16).padLeft(2, '0').toUpperCase()} ($commandDescription)');
+      } else {
+        _logHandler('[SEND] ${message.type.name}');
+      }
+    }
+  }
+
   _readLoop() async {
     await _usbDevice.startReadingLoop(
       //
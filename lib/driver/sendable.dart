@@ -136,17 +136,16 @@ class SendAudio extends SendableMessageWithPayload {
 
   @override
   ByteData getPayload() {
-    final audioData = ByteData(12)
+    // header and samples written into one buffer, no intermediate lists
+    final payload = Uint8List(12 + data.lengthInBytes);
+    payload.buffer.asByteData()
       ..setUint32(0, 5, Endian.little)
       ..setFloat32(4, 0.0, Endian.little)
       ..setUint32(8, 3, Endian.little);
+    payload.setAll(
+        12, data.buffer.asUint8List(data.offsetInBytes, data.lengthInBytes));
 
-    return Uint8List.fromList(
-      [
-        ...audioData.buffer.asUint8List(),
-        ...data.buffer.asUint8List(),
-      ],
-    ).buffer.asByteData();
+    return payload.buffer.asByteData();
   }
 }
 
@@ -61,10 +61,20 @@ class UsbDeviceWrapper {
     await CarlinkPlatform.instance.resetDevice();
   }
 
+  // transferCount bulk transfers of transferSize bytes are kept queued
+  // on the IN endpoint; messages are delivered in batches of up to
+  // batchMaxBytes, collected for up to batchDelayMicros. Audio PCM is
+  // played natively and not delivered unless nativeAudio is false. null
+  // leaves the native defaults
   Future<void> startReadingLoop({
     required Function(int, Uint8List?) onMessage,
     required Function(String) onError,
     int timeout = 10000,
+    int? transferCount,
+    int? transferSize,
+    int? batchMaxBytes,
+    int? batchDelayMicros,
+    bool? nativeAudio,
   }) {
     if (!isOpened) throw "UsbDevice not opened";
     if (_endpointIn == null) throw "UsbDevice endpointIn is null";
@@ -74,6 +84,11 @@ class UsbDeviceWrapper {
       timeout,
       onMessage: onMessage,
       onError: onError,
+      transferCount: transferCount,
+      transferSize: transferSize,
+      batchMaxBytes: batchMaxBytes,
+      batchDelayMicros: batchDelayMicros,
+      nativeAudio: nativeAudio,
     );
   }
 
@@ -81,6 +96,27 @@ class UsbDeviceWrapper {
     return CarlinkPlatform.instance.stopReadingLoop();
   }
 
+  // microphone audio is captured and written to the OUT endpoint natively
+  Future<void> startMicUplink({
+    int timeout = 1000,
+    int? decodeType,
+    int? audioType,
+  }) {
+    if (!isOpened) throw "UsbDevice not opened";
+    if (_endpointOut == null) throw "UsbDevice endpointOut is null";
+
+    return CarlinkPlatform.instance.startMicUplink(
+      _endpointOut!,
+      timeout,
+      decodeType: decodeType,
+      audioType: audioType,
+    );
+  }
+
+  Future<void> stopMicUplink() {
+    return CarlinkPlatform.instance.stopMicUplink();
+  }
+
   Future<Uint8List> read(int maxLength,
       {int timeout = 10000, bool isVideoData = false}) {
     if (!isOpened) throw "UsbDevice not opened";
@@ -94,6 +130,68 @@ class UsbDeviceWrapper {
     );
   }
 
+  // HeartBeat every heartbeatIntervalMs, and a read loop that receives
+  // nothing for stallTimeoutMs while streaming fails at once. null leaves
+  // the native defaults
+  Future<void> startLinkWatchdog({
+    int timeout = 10000,
+    int? heartbeatIntervalMs,
+    int? stallTimeoutMs,
+  }) {
+    if (!isOpened) throw "UsbDevice not opened";
+    if (_endpointOut == null) throw "UsbDevice endpointOut is null";
+
+    return CarlinkPlatform.instance.startLinkWatchdog(
+      _endpointOut!,
+      timeout,
+      heartbeatIntervalMs: heartbeatIntervalMs,
+      stallTimeoutMs: stallTimeoutMs,
+    );
+  }
+
+  Future<void> stopLinkWatchdog() {
+    return CarlinkPlatform.instance.stopLinkWatchdog();
+  }
+
+  Future<Map<String, dynamic>?> getLinkStats() {
+    return CarlinkPlatform.instance.getLinkStats();
+  }
+
+  // the frame request command is timed and written natively
+  Future<void> startFrameRequests(int intervalMs, {int timeout = 10000}) {
+    if (!isOpened) throw "UsbDevice not opened";
+    if (_endpointOut == null) throw "UsbDevice endpointOut is null";
+
+    return CarlinkPlatform.instance
+        .startFrameRequests(_endpointOut!, timeout, intervalMs);
+  }
+
+  Future<void> stopFrameRequests() {
+    return CarlinkPlatform.instance.stopFrameRequests();
+  }
+
+  // writes through post() go out without a round trip each, their results
+  // arrive summed up in onReport
+  Future<void> openWriteQueue({
+    required Function(Map<String, dynamic>) onReport,
+    int timeout = 10000,
+  }) {
+    if (!isOpened) throw "UsbDevice not opened";
+    if (_endpointOut == null) throw "UsbDevice endpointOut is null";
+
+    return CarlinkPlatform.instance.openWriteQueue(
+      _endpointOut!,
+      timeout,
+      onReport: onReport,
+    );
+  }
+
+  void post(Uint8List data) {
+    if (!isOpened) throw "UsbDevice not opened";
+
+    CarlinkPlatform.instance.enqueueBulkTransferOut(data);
+  }
+
   Future<int> write(Uint8List data, {int timeout = 10000}) async {
     if (!isOpened) throw "UsbDevice not opened";
     if (_endpointOut == null) throw "UsbDevice endpointOut is null";